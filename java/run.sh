@@ -1,3 +1,32 @@
 #!/bin/bash
 # replace the jar file path
-java -jar target/ikapi-1.0.0.jar "$@"
+JAR=target/ikapi-1.0.0.jar
+JSA=target/ikapi-1.0.0.jsa
+# IKAPI_JFR=run.jfr ./run.sh ... records a flight recording with ikapi.jfc
+OPTS=()
+if [ -n "$IKAPI_JFR" ]; then
+    OPTS+=("-XX:StartFlightRecording:settings=$(dirname "$0")/ikapi.jfc,filename=$IKAPI_JFR")
+fi
+# major version of the java on the PATH, from its release file so that
+# finding it out does not cost a JVM start
+java_major() {
+    local home
+    home=$(dirname "$(dirname "$(readlink -f "$(command -v java)")")")
+    local v
+    v=$(sed -n 's/^JAVA_VERSION="\([0-9]*\).*/\1/p' "$home/release" 2>/dev/null)
+    if [ -z "$v" ]; then
+        v=$(java -version 2>&1 | sed -n 's/.* version "\([0-9]*\).*/\1/p' | head -1)
+    fi
+    echo "${v:-0}"
+}
+# use the AppCDS archive built by `mvn -Pcds package` when it is there;
+# from JDK 19 the JVM also regenerates it on exit if it no longer matches
+# the jar (older JVMs do not know -XX:+AutoCreateSharedArchive and would
+# refuse to start, so they just use the archive as it is)
+if [ -f "$JSA" ]; then
+    if [ "$(java_major)" -ge 19 ]; then
+        OPTS+=("-XX:+AutoCreateSharedArchive")
+    fi
+    exec java "${OPTS[@]}" -XX:SharedArchiveFile="$JSA" -jar "$JAR" "$@"
+fi
+exec java "${OPTS[@]}" -jar "$JAR" "$@"
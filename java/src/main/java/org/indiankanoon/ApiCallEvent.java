@@ -0,0 +1,46 @@
+package org.indiankanoon;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/*
+ * Flight recorder events (this one and the other *Event classes), e.g. with
+ * the ikapi.jfc profile:
+ *   java -XX:StartFlightRecording:settings=ikapi.jfc,filename=ikapi.jfr -jar ...
+ * Loading the first event class starts up JFR, which takes a few hundred ms,
+ * so they are only made once FlightRecorder.isInitialized(), i.e. once a
+ * recording has been started. Past that they cost next to nothing.
+ */
+
+@Name("org.indiankanoon.ApiCall")
+@Label("API Call")
+@Category({"IKAPI", "API"})
+@Description("One HTTP request to the API")
+class ApiCallEvent extends Event
+{
+    @Label("Endpoint")
+    String endpoint;
+
+    @Label("Status")
+    int status = -1;
+
+    @Label("Response Size")
+    @Description("Bytes of the response body as read off the connection")
+    @DataAmount
+    long bytes;
+
+    @Label("Attempt")
+    int attempt;
+
+    @Label("Token")
+    @Description("Which of the API tokens was used, by its position")
+    String token;
+
+    @Label("Hedged")
+    @Description("Sent again because the first request was slower than the recent p95")
+    boolean hedged;
+}
@@ -0,0 +1,23 @@
+package org.indiankanoon;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("org.indiankanoon.ApiRetry")
+@Label("API Retry Backoff")
+@Category({"IKAPI", "API"})
+@Description("Sleep before retrying a failed API call")
+class ApiRetryEvent extends Event
+{
+    @Label("Endpoint")
+    String endpoint;
+
+    @Label("Attempt")
+    int attempt;
+
+    @Label("Reason")
+    String reason;
+}
@@ -0,0 +1,175 @@
+package org.indiankanoon;
+
+import java.util.*;
+
+/**
+ * Global budget for the bytes of API responses held in memory at once. A
+ * fetch reserves EXPANSION times the size of the response body (its
+ * Content-Length, or the running average for that endpoint when there is
+ * none) to cover the body and the string and parsed json made from it,
+ * and blocks while the budget is used up. Bodies larger than the spill
+ * size, or that arrive while the budget is used up, are first streamed to
+ * a temp file so that the connection is not held open while waiting.
+ * Originals are never read into memory: their responses always go to a
+ * temp file and are decoded from there straight into place.
+ *
+ * Each attempt at a call holds the reservation for its own body, which is
+ * given back at once if the attempt fails, is retried or loses a hedge.
+ * The body that is used is handed to a Scope, which every caller opens
+ * around fetching and using a response (saving a doc or result page,
+ * parsing a docfragment, plan or count page), and released when it
+ * closes. Only the single doc of -d is fetched outside any scope, and so
+ * is not counted once the call has returned. A thread
+ * that already holds bytes in its scope never waits for more. Bytes
+ * queued for the StorageWriter are counted too, but never block.
+ */
+public class ByteBudget
+{
+    static final int EXPANSION = 4;
+    private static final long INITIAL_ESTIMATE = 64 * 1024;
+
+    private final long capacity;
+    private final long spillBytes;
+    private final ThreadLocal<Scope> current = new ThreadLocal<>();
+    private final Map<String, Long> averages = new HashMap<>();
+    private long used = 0;
+
+    public ByteBudget(long capacity, long spillBytes)
+    {
+        this.capacity = capacity;
+        this.spillBytes = spillBytes;
+    }
+
+    public long capacity() {
+        return capacity;
+    }
+
+    public long spillBytes() {
+        return spillBytes;
+    }
+
+    public synchronized long used() {
+        return used;
+    }
+
+    public synchronized boolean tryReserve(long n) {
+        if(used > 0 && used + n > capacity)
+        {
+            return false;
+        }
+        used += n;
+        return true;
+    }
+
+    /**
+     * Blocks until n bytes are free. A request larger than the whole budget
+     * waits for everything else to be released and then goes ahead alone.
+     * If scope already holds bytes they are counted at once instead, as two
+     * threads each waiting for what the other holds would wait forever.
+     */
+    public void reserve(long n, Scope scope) throws InterruptedException {
+        if(scope.held() > 0)
+        {
+            force(n);
+            return;
+        }
+        synchronized (this)
+        {
+            while (used > 0 && used + n > capacity)
+            {
+                wait();
+            }
+            used += n;
+        }
+    }
+
+    /** Counts n bytes without waiting, for memory that is already in use. */
+    public synchronized void force(long n) {
+        used += n;
+    }
+
+    public synchronized void release(long n) {
+        used -= n;
+        notifyAll();
+    }
+
+    /** Running average of the body size of an endpoint ("doc", "search", ...). */
+    public synchronized long estimate(String kind) {
+        return averages.getOrDefault(kind, INITIAL_ESTIMATE);
+    }
+
+    public synchronized void record(String kind, long bytes) {
+        Long avg = averages.get(kind);
+        averages.put(kind, avg == null ? bytes : (avg * 7 + bytes) / 8);
+    }
+
+    /**
+     * Opens a scope on this thread, or joins the one already open; closing
+     * a joined scope leaves the reservations to the outer one.
+     */
+    public Scope enter() {
+        Scope outer = current.get();
+        if(outer != null)
+        {
+            return new Scope(outer);
+        }
+        Scope scope = new Scope(null);
+        current.set(scope);
+        return scope;
+    }
+
+    public class Scope implements AutoCloseable
+    {
+        private final Scope outer;
+        private long held = 0;
+        private boolean closed = false;
+
+        private Scope(Scope outer)
+        {
+            this.outer = outer;
+        }
+
+        /**
+         * Hands n already reserved bytes (negative for bytes given back) to
+         * the scope. Once it is closed, e.g. for the loser of a hedged
+         * request, they are released right away.
+         */
+        public void add(long n) {
+            if(outer != null)
+            {
+                outer.add(n);
+                return;
+            }
+            synchronized (this)
+            {
+                if(!closed)
+                {
+                    held += n;
+                    return;
+                }
+            }
+            release(n);
+        }
+
+        public synchronized long held() {
+            return outer != null ? outer.held() : held;
+        }
+
+        @Override
+        public void close() {
+            if(outer != null)
+            {
+                return;
+            }
+            long n;
+            synchronized (this)
+            {
+                closed = true;
+                n = held;
+                held = 0;
+            }
+            current.remove();
+            release(n);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package org.indiankanoon;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.*;
+import java.io.*;
+import java.util.*;
+import java.nio.file.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Scans a datadir for damaged output in parallel: truncated or empty doc
+ * json, originals saved with the unkwn extension, courtcopy docs whose
+ * original is missing (with -o) and temp files left by interrupted writes.
+ * Each directory is a fork/join task, so at most `workers` directories are
+ * read at once. Json is validated in a single streaming pass that checks
+ * its braces balance. Problems are written to a repair list that
+ * IKApi.repair re-fetches.
+ */
+public class CorpusVerifier extends RecursiveAction
+{
+    private static final long serialVersionUID = 1L;
+    private static final Logger verifyLogger = Logger.getLogger("verify");
+
+    public static final String TRUNCATED = "truncated json";
+    public static final String UNKNOWN_ORIGINAL = "unknown original";
+    public static final String MISSING_ORIGINAL = "missing original";
+    public static final String TEMP_FILE = "stale temp file";
+
+    private static final Pattern DOC_JSON = Pattern.compile("(\\d+)\\.json");
+    private static final Pattern ORIGINAL = Pattern.compile("(\\d+)_orignal\\.(\\w+)");
+    private static final byte[] COURTCOPY_KEY = "courtcopy".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRUE = "true".getBytes(StandardCharsets.US_ASCII);
+
+    // fork/join tasks are never serialized
+    private final transient Path dir;
+    private final boolean checkOriginals;
+    private final transient Queue<String> problems;
+    private final AtomicInteger scanned;
+
+    private CorpusVerifier(Path dir, boolean checkOriginals, Queue<String> problems, AtomicInteger scanned)
+    {
+        this.dir = dir;
+        this.checkOriginals = checkOriginals;
+        this.problems = problems;
+        this.scanned = scanned;
+    }
+
+    /** Scans datadir and writes the repair list; returns the number of problems found. */
+    public static int verify(Path datadir, int workers, boolean checkOriginals, Path repairList) throws IOException {
+        Queue<String> problems = new ConcurrentLinkedQueue<>();
+        AtomicInteger scanned = new AtomicInteger();
+        ForkJoinPool pool = new ForkJoinPool(workers);
+        try {
+            pool.invoke(new CorpusVerifier(datadir, checkOriginals, problems, scanned));
+        } finally {
+            pool.shutdown();
+        }
+        FileStorage.writeAtomically(repairList, (String.join("\n", problems) + (problems.isEmpty() ? "" : "\n")).getBytes(StandardCharsets.UTF_8));
+        verifyLogger.info(String.format("Checked %d doc(s), %d problem(s) written to %s", scanned.get(), problems.size(), repairList));
+        return problems.size();
+    }
+
+    @Override
+    protected void compute() {
+        List<Path> files = new ArrayList<>();
+        List<CorpusVerifier> subdirs = new ArrayList<>();
+        try(DirectoryStream<Path> entries = Files.newDirectoryStream(dir))
+        {
+            for(Path entry: entries)
+            {
+                if(Files.isDirectory(entry))
+                {
+                    if(!FileStorage.INTERNAL_DIRS.contains(entry.getFileName().toString()))
+                    {
+                        subdirs.add(new CorpusVerifier(entry, checkOriginals, problems, scanned));
+                    }
+                } else {
+                    files.add(entry);
+                }
+            }
+        } catch (IOException e) {
+            verifyLogger.warning(String.format("Error listing %s %s", dir, e.getMessage()));
+        }
+        for(CorpusVerifier sub: subdirs)
+        {
+            sub.fork();
+        }
+        checkFiles(files);
+        for(CorpusVerifier sub: subdirs)
+        {
+            sub.join();
+        }
+    }
+
+    private void checkFiles(List<Path> files) {
+        Set<String> originals = new HashSet<>();
+        for(Path file: files)
+        {
+            Matcher m = ORIGINAL.matcher(file.getFileName().toString());
+            if(m.matches())
+            {
+                originals.add(m.group(1));
+                if(m.group(2).equals("unkwn"))
+                {
+                    report(m.group(1), UNKNOWN_ORIGINAL);
+                }
+            }
+        }
+        for(Path file: files)
+        {
+            String name = file.getFileName().toString();
+            if(name.endsWith(".tmp"))
+            {
+                report(name, TEMP_FILE);
+                continue;
+            }
+            Matcher m = DOC_JSON.matcher(name);
+            if(!m.matches())
+            {
+                continue;
+            }
+            scanned.incrementAndGet();
+            try {
+                DocCheck doc = check(file);
+                if(!doc.complete)
+                {
+                    report(m.group(1), TRUNCATED);
+                } else if(checkOriginals && !originals.contains(m.group(1)) && doc.courtCopy)
+                {
+                    report(m.group(1), MISSING_ORIGINAL);
+                }
+            } catch (IOException e) {
+                verifyLogger.warning(String.format("Error reading %s %s", file, e.getMessage()));
+                report(m.group(1), TRUNCATED);
+            }
+        }
+    }
+
+    private void report(String name, String reason) {
+        problems.add(name + "\t" + dir + "\t" + reason);
+    }
+
+    /** What one pass over a doc json found. */
+    public static final class DocCheck
+    {
+        /** a single object whose braces balance, with nothing but whitespace after it */
+        public boolean complete;
+        /** the object has a top level "courtcopy": true */
+        public boolean courtCopy;
+    }
+
+    /**
+     * Streams through the file once, tracking brace depth outside strings,
+     * so a doc cut off at any point is caught without holding the file in
+     * memory; the top level courtcopy flag is picked up on the same pass.
+     */
+    public static DocCheck check(Path file) throws IOException {
+        DocCheck result = new DocCheck();
+        int depth = 0;
+        boolean started = false;
+        boolean ended = false;
+        boolean inString = false;
+        boolean escape = false;
+        // bytes of the current top level string that match "courtcopy", -1 once it differs
+        int keyPos = -1;
+        // 1 after the "courtcopy" string, 2 after its ':', 3 and on matching "true"
+        int flag = 0;
+        try(InputStream in = new BufferedInputStream(Files.newInputStream(file), 1 << 16))
+        {
+            int c;
+            while ((c = in.read()) != -1)
+            {
+                if(inString)
+                {
+                    if(escape)
+                    {
+                        escape = false;
+                    } else if(c == '\\')
+                    {
+                        escape = true;
+                    } else if(c == '"')
+                    {
+                        inString = false;
+                        flag = keyPos == COURTCOPY_KEY.length ? 1 : 0;
+                        continue;
+                    }
+                    if(keyPos >= 0)
+                    {
+                        keyPos = keyPos < COURTCOPY_KEY.length && c == COURTCOPY_KEY[keyPos] ? keyPos + 1 : -1;
+                    }
+                    continue;
+                }
+                if(c == ' ' || c == '\t' || c == '\n' || c == '\r')
+                {
+                    continue;
+                }
+                if(ended || (!started && c != '{'))
+                {
+                    return result;
+                }
+                started = true;
+                if(flag == 1)
+                {
+                    flag = c == ':' ? 2 : 0;
+                } else if(flag >= 2)
+                {
+                    flag = c == TRUE[flag - 2] ? flag + 1 : 0;
+                    if(flag - 2 == TRUE.length)
+                    {
+                        result.courtCopy = true;
+                        flag = 0;
+                    }
+                }
+                switch (c)
+                {
+                    case '"':
+                        inString = true;
+                        keyPos = depth == 1 ? 0 : -1;
+                        break;
+                    case '{':
+                    case '[':
+                        depth++;
+                        break;
+                    case '}':
+                    case ']':
+                        depth--;
+                        ended = depth == 0;
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+        result.complete = ended;
+        return result;
+    }
+}
@@ -0,0 +1,48 @@
+package org.indiankanoon;
+
+import java.io.*;
+
+/**
+ * Counts the bytes read through it, for the size of API responses in the
+ * ApiCall event.
+ */
+class CountingInputStream extends FilterInputStream
+{
+    private long count = 0;
+
+    CountingInputStream(InputStream in)
+    {
+        super(in);
+    }
+
+    long count() {
+        return count;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if(b >= 0)
+        {
+            count++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if(n > 0)
+        {
+            count += n;
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        count += skipped;
+        return skipped;
+    }
+}
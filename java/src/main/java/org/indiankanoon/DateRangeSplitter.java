@@ -0,0 +1,58 @@
+package org.indiankanoon;
+
+import java.time.LocalDate;
+import java.util.concurrent.*;
+import java.util.function.ToLongBiFunction;
+import java.util.*;
+
+/**
+ * Recursively halves a publish date range until the number of results in
+ * every slice, as counted by the probe, is at most the target (or the
+ * slice is a single day). The halves are probed in parallel. Slices come
+ * back in chronological order, or null if any probe failed (returned a
+ * negative count), as the slices would then not cover the whole range.
+ */
+public class DateRangeSplitter extends RecursiveTask<List<DateSlice>>
+{
+    private static final long serialVersionUID = 1L;
+
+    private final LocalDate from;
+    private final LocalDate to;
+    private final long target;
+    // fork/join tasks are never serialized
+    private final transient ToLongBiFunction<LocalDate,LocalDate> probe;
+
+    public DateRangeSplitter(LocalDate from, LocalDate to, long target, ToLongBiFunction<LocalDate,LocalDate> probe)
+    {
+        this.from = from;
+        this.to = to;
+        this.target = target;
+        this.probe = probe;
+    }
+
+    @Override
+    protected List<DateSlice> compute() {
+        long n = probe.applyAsLong(from, to);
+        if(n < 0)
+        {
+            return null;
+        }
+        if(n <= target || !from.isBefore(to))
+        {
+            return n == 0 ? Collections.emptyList() : List.of(new DateSlice(from, to, n));
+        }
+        LocalDate mid = from.plusDays((to.toEpochDay() - from.toEpochDay()) / 2);
+        DateRangeSplitter left = new DateRangeSplitter(from, mid, target, probe);
+        DateRangeSplitter right = new DateRangeSplitter(mid.plusDays(1), to, target, probe);
+        right.fork();
+        List<DateSlice> first = left.compute();
+        List<DateSlice> second = right.join();
+        if(first == null || second == null)
+        {
+            return null;
+        }
+        List<DateSlice> slices = new ArrayList<>(first);
+        slices.addAll(second);
+        return slices;
+    }
+}
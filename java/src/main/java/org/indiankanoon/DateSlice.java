@@ -0,0 +1,20 @@
+package org.indiankanoon;
+
+import java.time.LocalDate;
+
+/**
+ * One publish date range of a query split up by DateRangeSplitter.
+ */
+public class DateSlice
+{
+    public final LocalDate from;
+    public final LocalDate to;
+    public final long found;
+
+    DateSlice(LocalDate from, LocalDate to, long found)
+    {
+        this.from = from;
+        this.to = to;
+        this.found = found;
+    }
+}
@@ -0,0 +1,75 @@
+package org.indiankanoon;
+
+/**
+ * Point in time by which a job (a query with all its pages and docs) must
+ * be done. The deadline of the job being worked on is kept in a thread
+ * local so that callApi can stop retrying and cap its timeouts without it
+ * being passed through every method on the way.
+ */
+class Deadline
+{
+    private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<>();
+
+    private final long expiresAtNanos;
+
+    private Deadline(long expiresAtNanos)
+    {
+        this.expiresAtNanos = expiresAtNanos;
+    }
+
+    /** A deadline millis from now, or null (no deadline) if millis is not positive. */
+    static Deadline after(long millis) {
+        return millis > 0 ? new Deadline(System.nanoTime() + millis * 1_000_000L) : null;
+    }
+
+    static Deadline current() {
+        return CURRENT.get();
+    }
+
+    /** Makes d the current deadline unless the thread already has one; returns true if it did. */
+    static boolean enterIfAbsent(Deadline d) {
+        if(d == null || CURRENT.get() != null)
+        {
+            return false;
+        }
+        CURRENT.set(d);
+        return true;
+    }
+
+    static void run(Deadline d, Runnable task) {
+        Deadline previous = CURRENT.get();
+        CURRENT.set(d);
+        try {
+            task.run();
+        } finally {
+            CURRENT.set(previous);
+        }
+    }
+
+    static <T> T call(Deadline d, java.util.function.Supplier<T> task) {
+        Deadline previous = CURRENT.get();
+        CURRENT.set(d);
+        try {
+            return task.get();
+        } finally {
+            CURRENT.set(previous);
+        }
+    }
+
+    static void exit() {
+        CURRENT.remove();
+    }
+
+    long remainingMillis() {
+        return Math.max(0, (expiresAtNanos - System.nanoTime()) / 1_000_000L);
+    }
+
+    boolean expired() {
+        return System.nanoTime() - expiresAtNanos >= 0;
+    }
+
+    /** Caps a timeout to what is left of the deadline d (which may be null). */
+    static long cap(long millis, Deadline d) {
+        return d == null ? millis : Math.max(1, Math.min(millis, d.remainingMillis()));
+    }
+}
@@ -0,0 +1,23 @@
+package org.indiankanoon;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("org.indiankanoon.DocDownload")
+@Label("Doc Download")
+@Category({"IKAPI", "Crawl"})
+@Description("Fetching and saving the json of one doc")
+class DocDownloadEvent extends Event
+{
+    @Label("Doc Id")
+    int docId;
+
+    @Label("Directory")
+    String dataDir;
+
+    @Label("Saved")
+    boolean saved;
+}
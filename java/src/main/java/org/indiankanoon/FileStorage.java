@@ -0,0 +1,266 @@
+package org.indiankanoon;
+
+import jdk.jfr.FlightRecorder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.concurrent.*;
+import java.util.logging.*;
+import java.io.*;
+import java.util.*;
+import java.nio.file.*;
+import java.util.regex.Pattern;
+
+public class FileStorage
+{
+    private String datadir;
+    private StorageWriter writer;
+    private static final Logger fileStorageLogger  = Logger.getLogger("filestorage");
+
+    /** Directories under the datadir that hold our own bookkeeping rather than docs. */
+    static final Set<String> INTERNAL_DIRS = Set.of("resultlog", "leases", "docfragments", "originals", "localindex");
+
+    public FileStorage(String datadir)
+    {
+        this.datadir = datadir;
+
+    }
+
+    /**
+     * Moves doc and original writes off the calling threads onto a
+     * StorageWriter. Until then (and for the offline modes) they are
+     * written inline.
+     */
+    public void startWriter(int numThreads, int queueSize, long fsyncMillis, ByteBudget budget) {
+        if(this.writer != null)
+        {
+            return;
+        }
+        StorageWriter w = new StorageWriter(numThreads, queueSize, fsyncMillis, budget);
+        // commit what is queued even if the run ends with an exception or ^C
+        Runtime.getRuntime().addShutdownHook(new Thread(w::close, "ikapi-writer-shutdown"));
+        this.writer = w;
+    }
+
+    public void close() {
+        if(this.writer != null)
+        {
+            this.writer.close();
+        }
+    }
+
+    /** Writes data to target, or queues it; the future completes once it is on disk. */
+    private CompletableFuture<Boolean> write(String kind, Path target, byte[] data) throws IOException {
+        if(this.writer != null)
+        {
+            return this.writer.submit(kind, target, data);
+        }
+        StorageWriteEvent event = FlightRecorder.isInitialized() ? new StorageWriteEvent() : null;
+        if(event != null)
+        {
+            event.begin();
+        }
+        boolean success = false;
+        try {
+            writeAtomically(target, data);
+            success = true;
+        } finally {
+            if(event != null && event.shouldCommit())
+            {
+                event.kind = kind;
+                event.path = target.toString();
+                event.bytes = data.length;
+                event.success = success;
+                event.commit();
+            }
+        }
+        return CompletableFuture.completedFuture(true);
+    }
+
+    public String getJsonPath(String q) {
+          Path jsonPath = Paths.get(datadir,q+".json");
+          return jsonPath.toString();
+    }
+
+    /** Saves a json; the future completes with true once it is on disk. */
+    public CompletableFuture<Boolean> saveJson(String jsonStr, String filePath) {
+        try
+        {
+            return write("json", Paths.get(filePath), jsonStr.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            fileStorageLogger.warning(String.format("Error saving %s %s",filePath,e.getMessage()));
+            return CompletableFuture.completedFuture(false);
+        }
+    }
+
+    /**
+     * Writes to a temp file next to the target and renames it into place,
+     * so readers and racing writers never see a partially written file.
+     */
+    static void writeAtomically(Path target, byte[] data) throws IOException {
+        Path tmp = tempPath(target);
+        try
+        {
+            Files.write(tmp, data);
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    static Path tempPath(Path target) {
+        return target.resolveSibling(String.format("%s.%x.tmp", target.getFileName(), ThreadLocalRandom.current().nextLong()));
+    }
+
+    public String[] getJsonOrigPath(String dataDir, Integer docId) {
+        Path jsonPath = Paths.get(dataDir,String.format("%d.json",docId));
+        Path origPath = Paths.get(dataDir,String.format("%d_orignal",docId));
+        return new String[]{jsonPath.toString(),origPath.toString()};
+    }
+
+    public boolean exists(String filePath) {
+        return new File(filePath).exists() || (this.writer != null && this.writer.isPending(Paths.get(filePath)));
+    }
+
+    public boolean existsOriginal(String origPath) {
+        if(this.writer != null && this.writer.isPendingPrefix(origPath + "."))
+        {
+            return true;
+        }
+        File file = new File(origPath);
+        File dir = file.getParentFile();
+        String baseName = file.getName();
+
+        if(dir != null && dir.isDirectory())
+        {
+            // not a temp file, which may be an original still being written
+            File[] matches = dir.listFiles((d, name) -> name.startsWith(baseName) && !name.endsWith(".tmp"));
+            return matches != null && matches.length > 0;
+        }
+        return false;
+    }
+
+    /**
+     * Saves the original in the origdoc response in the file body, which
+     * is deleted afterwards. The doc is decoded from body as it is read,
+     * into a temp file that is then moved into place, so the original is
+     * never held in memory. The future completes with the size of the
+     * response once the original is on disk, or with -1 if it could not be
+     * decoded or written.
+     */
+    public CompletableFuture<Long> saveOriginal(Path body, String origPath) {
+        Path tmp = tempPath(Paths.get(origPath));
+        try
+        {
+            long size = Files.size(body);
+            OrigDocDecoder orig = OrigDocDecoder.decode(body, tmp);
+            if(orig.errmsg != null || !orig.hasDoc || orig.contentType == null)
+            {
+                Files.deleteIfExists(tmp);
+                return CompletableFuture.completedFuture(-1L);
+            }
+            String extension = getFileExtension(orig.contentType);
+            String filePath = origPath+"."+extension;
+            return move("original", tmp, Paths.get(filePath)).thenApply(saved -> saved ? size : -1L);
+        } catch (IOException e) {
+            fileStorageLogger.warning(String.format("Error saving original %s %s",origPath,e.getMessage()));
+            deleteQuietly(tmp);
+            return CompletableFuture.completedFuture(-1L);
+        } finally {
+            deleteQuietly(body);
+        }
+    }
+
+    /** Moves the complete file source to target, or queues it; the future completes once it is on disk. */
+    private CompletableFuture<Boolean> move(String kind, Path source, Path target) throws IOException {
+        if(this.writer != null)
+        {
+            return this.writer.submitFile(kind, source, target);
+        }
+        Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return CompletableFuture.completedFuture(true);
+    }
+
+    private static void deleteQuietly(Path p) {
+        try {
+            Files.deleteIfExists(p);
+        } catch (IOException e) {
+            fileStorageLogger.fine(String.format("Error deleting %s %s",p,e.getMessage()));
+        }
+    }
+
+    private String getFileExtension(String mtype) {
+        String t = "unkwn";
+        if(mtype == null || mtype.isEmpty())
+        {
+
+        } else if (Pattern.compile("text/html").matcher(mtype).find()) {
+            t="html";
+        } else if (Pattern.compile("application/postscript").matcher(mtype).find())
+        {
+            t="ps";
+        } else if (Pattern.compile("application/pdf").matcher(mtype).find())
+        {
+            t="pdf";   
+        } else if (Pattern.compile("text/plain").matcher(mtype).find()) {
+            t= "txt";
+        } else if (Pattern.compile("image/png").matcher(mtype).find()) {
+            t="png";
+        }
+        return t;
+    }
+
+    public Path getSearchPath(String q) {
+        Path dataDir = Paths.get(this.datadir,q);
+        IKApiMain.mkDir(dataDir);
+        return dataDir;
+    }
+
+    public TocWriter getToCWriter(Path dataDir) throws IOException {
+        return getToCWriter(dataDir, "toc.csv");
+    }
+
+    public TocWriter getToCWriter(Path dataDir, String fileName) throws IOException {
+        return new TocWriter(dataDir.resolve(fileName));
+    }
+
+    public Path getDocPath(String docSource, String publishDate) throws Exception {
+        Path dataDir = Paths.get(this.datadir,docSource);
+        IKApiMain.mkDir(dataDir);
+        LocalDate date = IKApiMain.getDateObj(publishDate);
+        dataDir = Paths.get(dataDir.toString(),String.valueOf(date.getYear()));
+        IKApiMain.mkDir(dataDir);
+        Path docPath = Paths.get(dataDir.toString(),date.toString());
+        IKApiMain.mkDir(docPath);
+        return docPath;
+    }
+
+    public Path getResultLogPath() {
+        return Paths.get(this.datadir,"resultlog");
+    }
+
+    public Path getRepairListPath() {
+        return Paths.get(this.datadir,"repair.txt");
+    }
+
+    public Path getLocalIndexPath() {
+        return Paths.get(this.datadir,"localindex");
+    }
+
+    public Path getFragmentPath() {
+        return Paths.get(this.datadir,"docfragments");
+    }
+
+    public Path getOriginalsPath() {
+        return Paths.get(this.datadir,"originals");
+    }
+
+    public Path getLeasePath() {
+        return Paths.get(this.datadir,"leases");
+    }
+
+    public Path getDocpathByPosition(Path dataDir, int current) {
+        Path docPath = Paths.get(dataDir.toString(),String.valueOf(current));
+        IKApiMain.mkDir(docPath);
+        return docPath;
+    }
+}
@@ -0,0 +1,140 @@
+package org.indiankanoon;
+
+import org.json.JSONObject;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+import java.util.logging.*;
+import java.io.*;
+import java.util.*;
+import java.nio.file.*;
+
+/**
+ * Consolidated output of the bulk docfragment mode, kept in
+ * DATADIR/docfragments: fragments.jsonl has one
+ * {"docid", "query", "fragment"} object per line and fragments.idx maps
+ * each pair to its line as "docid TAB offset TAB length TAB query".
+ * Pairs already in the index are done and skipped on the next run.
+ */
+public class FragmentStore implements Closeable
+{
+    private static final Logger fragmentLogger = Logger.getLogger("fragments");
+
+    private final FileChannel data;
+    private final Writer index;
+    private final Set<Long> done = ConcurrentHashMap.newKeySet();
+
+    public FragmentStore(Path dir) throws IOException
+    {
+        Files.createDirectories(dir);
+        Path idxFile = dir.resolve("fragments.idx");
+        Path dataFile = dir.resolve("fragments.jsonl");
+        long end = 0;
+        if(Files.exists(idxFile))
+        {
+            end = loadIndex(idxFile, Files.exists(dataFile) ? Files.size(dataFile) : 0);
+        }
+        this.data = FileChannel.open(dataFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        // drop anything written after the last indexed fragment
+        if(this.data.size() > end)
+        {
+            fragmentLogger.warning(String.format("Dropping %d unindexed bytes from fragments.jsonl", this.data.size() - end));
+            this.data.truncate(end);
+        }
+        this.data.position(end);
+        this.index = Files.newBufferedWriter(idxFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Reads the index into done and returns the end of the last fragment in
+     * it. The index is cut back after its last whole line whose fragment is
+     * entirely within the dataSize bytes of fragments.jsonl, so that a crash
+     * part way through either file loses only the fragments being written.
+     */
+    private long loadIndex(Path idxFile, long dataSize) throws IOException {
+        long end = 0;
+        long valid = 0;
+        try(InputStream in = new BufferedInputStream(Files.newInputStream(idxFile)))
+        {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            long pos = 0;
+            int c;
+            while ((c = in.read()) != -1)
+            {
+                pos++;
+                if(c != '\n')
+                {
+                    line.write(c);
+                    continue;
+                }
+                String[] parts = line.toString(StandardCharsets.UTF_8).split("\t", 4);
+                line.reset();
+                if(parts.length < 4)
+                {
+                    break;
+                }
+                long offset;
+                long length;
+                try {
+                    offset = Long.parseLong(parts[1]);
+                    length = Long.parseLong(parts[2]);
+                    if(offset + length > dataSize)
+                    {
+                        break;
+                    }
+                    done.add(key(Integer.parseInt(parts[0]), parts[3]));
+                } catch (NumberFormatException e) {
+                    break;
+                }
+                end = Math.max(end, offset + length);
+                valid = pos;
+            }
+        }
+        if(valid < Files.size(idxFile))
+        {
+            fragmentLogger.warning(String.format("Dropping %d bytes of fragments.idx past the last complete fragment", Files.size(idxFile) - valid));
+            try(FileChannel ch = FileChannel.open(idxFile, StandardOpenOption.WRITE))
+            {
+                ch.truncate(valid);
+            }
+        }
+        return end;
+    }
+
+    public static long key(int docId, String query) {
+        return QueryFile.hash64(docId + "\t" + query);
+    }
+
+    /** Marks the pair as taken; returns false if it was done or taken already. */
+    public boolean claim(int docId, String query) {
+        return done.add(key(docId, query));
+    }
+
+    public void unclaim(int docId, String query) {
+        done.remove(key(docId, query));
+    }
+
+    public synchronized void append(int docId, String query, JSONObject fragment) throws IOException {
+        JSONObject record = new JSONObject();
+        record.put("docid", docId);
+        record.put("query", query);
+        record.put("fragment", fragment);
+        ByteBuffer buf = ByteBuffer.wrap((record.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+        long offset = data.position();
+        int length = buf.remaining();
+        while (buf.hasRemaining())
+        {
+            data.write(buf);
+        }
+        index.write(String.format("%d\t%d\t%d\t%s\n", docId, offset, length, query.replace('\n', ' ')));
+        index.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        data.force(false);
+        data.close();
+        index.close();
+    }
+}
@@ -1,6 +1,5 @@
 package org.indiankanoon;
 
-import com.opencsv.CSVWriter;
 import net.sourceforge.argparse4j.ArgumentParsers;
 import net.sourceforge.argparse4j.impl.Arguments;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
@@ -9,18 +8,18 @@ import net.sourceforge.argparse4j.helper.HelpScreenException;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
 import javax.net.ssl.HttpsURLConnection;
+import jdk.jfr.FlightRecorder;
+import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
 import java.util.Date;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.*;
 import java.io.*;
 import java.util.*;
@@ -76,8 +75,13 @@ class IKArgParser
 
         parser.addArgument("-s","--sharedtoken")
                 .dest("token")
-                .required(true)
-                .help("api.ik shared token");
+                .required(false)
+                .help("api.ik shared token, or several separated by commas (required for everything except the offline modes, unless --token-file is given)");
+
+        parser.addArgument("--token-file")
+                .dest("tokenfile")
+                .required(false)
+                .help("file with one api.ik token per line, optionally followed by its requests per second and its request quota");
 
         parser.addArgument("-q","--query")
                 .dest("q")
@@ -101,6 +105,27 @@ class IKArgParser
                 .required(false)
                 .help("ik original");
 
+        parser.addArgument("--orig-workers")
+                .type(Integer.class)
+                .dest("origworkers")
+                .setDefault(2)
+                .required(false)
+                .help("num workers for downloading originals, separate from -N");
+
+        parser.addArgument("--orig-kbps")
+                .type(Integer.class)
+                .dest("origkbps")
+                .setDefault(0)
+                .required(false)
+                .help("bandwidth cap for downloading originals in KB/s (0 for no cap)");
+
+        parser.addArgument("--orig-rate")
+                .type(Double.class)
+                .dest("origrate")
+                .setDefault(1.0)
+                .required(false)
+                .help("max original requests per second, so that originals leave the API to the docs (0 for no limit)");
+
         parser.addArgument("-m","--maxcites")
                 .type(Integer.class)
                 .dest("maxcites")
@@ -170,144 +195,194 @@ class IKArgParser
                 .setDefault(false)
                 .help("Process next one level of citedby for docid");
 
-        return parser;
-    }
-}
+        parser.addArgument("-R","--resultlog")
+                .dest("resultlog")
+                .action(Arguments.storeTrue())
+                .required(false)
+                .setDefault(false)
+                .help("Also append every search hit to the consolidated result log in DATADIR/resultlog");
 
-class FileStorage
-{
-    private String datadir;
-    private static final Logger fileStorageLogger  = Logger.getLogger("filestorage");
+        parser.addArgument("-L","--lookup")
+                .dest("lookup")
+                .action(Arguments.storeTrue())
+                .required(false)
+                .setDefault(false)
+                .help("Query the result log instead of the API; filter with -d DOCID, --court and -f/-t");
 
-    public FileStorage(String datadir)
-    {
-        this.datadir = datadir;
+        parser.addArgument("--court")
+                .dest("court")
+                .required(false)
+                .help("court (docsource) to filter result log lookups on");
 
-    }
+        parser.addArgument("--rate")
+                .type(Double.class)
+                .dest("rate")
+                .setDefault(0.0)
+                .required(false)
+                .help("max API requests per second across all workers (0 for no limit)");
 
-    public String getJsonPath(String q) {
-          Path jsonPath = Paths.get(datadir,q+".json");
-          return jsonPath.toString();
-    }
+        parser.addArgument("--token-rate")
+                .type(Double.class)
+                .dest("tokenrate")
+                .setDefault(0.0)
+                .required(false)
+                .help("max API requests per second for each token not given a rate in --token-file (0 for no limit)");
 
-    public boolean saveJson(String jsonStr, String filePath) {
-        boolean success;
-        try(BufferedWriter bw =new BufferedWriter(
-                new FileWriter(filePath,StandardCharsets.UTF_8)))
-        {
-            bw.write(jsonStr);
-            success =true;
-        } catch (IOException e) {
-            success =false;
-        }
-        return success;
-    }
+        parser.addArgument("--token-policy")
+                .dest("tokenpolicy")
+                .choices("roundrobin", "budget")
+                .setDefault("roundrobin")
+                .required(false)
+                .help("spread requests over the tokens in turn, or send each to the token with the most of its quota left");
 
-    public String[] getJsonOrigPath(String dataDir, Integer docId) {
-        Path jsonPath = Paths.get(dataDir,String.format("%d.json",docId));
-        Path origPath = Paths.get(dataDir,String.format("%d_orignal",docId));
-        return new String[]{jsonPath.toString(),origPath.toString()};
-    }
+        parser.addArgument("--quarantine")
+                .type(Integer.class)
+                .dest("quarantine")
+                .setDefault(900)
+                .required(false)
+                .help("seconds a token is left out after quota errors (doubled each time it happens again)");
 
-    public boolean exists(String filePath) {
-        return new File(filePath).exists();
-    }
+        parser.addArgument("--connect-timeout")
+                .type(Integer.class)
+                .dest("connecttimeout")
+                .setDefault(30)
+                .required(false)
+                .help("seconds to wait for a connection to the API");
 
-    public boolean existsOriginal(String origPath) {
-        File file = new File(origPath);
-        File dir = file.getParentFile();
-        String baseName = file.getName();
+        parser.addArgument("--read-timeout")
+                .type(Integer.class)
+                .dest("readtimeout")
+                .setDefault(120)
+                .required(false)
+                .help("seconds to wait for an API response");
 
-        if(dir != null && dir.isDirectory())
-        {
-            File[] matches = dir.listFiles((d, name) -> name.startsWith(baseName));
-            return matches != null && matches.length > 0;
-        }
-        return false;
-    }
+        parser.addArgument("--deadline")
+                .type(Integer.class)
+                .dest("deadline")
+                .setDefault(0)
+                .required(false)
+                .help("seconds a query (with all its pages and docs) may take before the rest of it is given up (0 for none)");
 
-    public boolean saveOriginal(String orig, String origPath) {
-        JSONObject obj;
-        try
-        {
-            obj = new JSONObject(orig);
-        } catch (JSONException e) {
-            fileStorageLogger.warning(String.format("Original is not a correct json %s",e.getMessage()));
-            return false;
-        }
-        if(obj.has("errmsg"))
-        {
-            return false;
-        }
-        try
-        {
-            byte[] doc = Base64.getDecoder().decode(obj.getString("doc"));
-            String extension = getFileExtension( obj.getString("Content-Type"));
-            String filePath = origPath+"."+extension;
-            try(FileOutputStream fos = new FileOutputStream(filePath))
-            {
-                fos.write(doc);
-            }
-            return true;
-        } catch (Exception e) {
-            fileStorageLogger.warning("Error processing file: "+ e.getMessage());
-            return false;
-        }
-    }
+        parser.addArgument("--hedge")
+                .dest("hedge")
+                .action(Arguments.storeTrue())
+                .required(false)
+                .setDefault(false)
+                .help("Send a second copy of API requests slower than the recent p95 latency and use whichever answers first");
 
-    private String getFileExtension(String mtype) {
-        String t = "unkwn";
-        if(mtype == null || mtype.isEmpty())
-        {
+        parser.addArgument("--io-threads")
+                .type(Integer.class)
+                .dest("iothreads")
+                .setDefault(2)
+                .required(false)
+                .help("threads writing docs and originals to disk");
 
-        } else if (Pattern.compile("text/html").matcher(mtype).find()) {
-            t="html";
-        } else if (Pattern.compile("application/postscript").matcher(mtype).find())
-        {
-            t="ps";
-        } else if (Pattern.compile("application/pdf").matcher(mtype).find())
-        {
-            t="pdf";   
-        } else if (Pattern.compile("text/plain").matcher(mtype).find()) {
-            t= "txt";
-        } else if (Pattern.compile("image/png").matcher(mtype).find()) {
-            t="png";
-        }
-        return t;
-    }
+        parser.addArgument("--write-queue")
+                .type(Integer.class)
+                .dest("writequeue")
+                .setDefault(64)
+                .required(false)
+                .help("files that may wait to be written before fetchers block");
 
-    public Path getSearchPath(String q) {
-        Path dataDir = Paths.get(this.datadir,q);
-        IKApiMain.mkDir(dataDir);
-        return dataDir;
-    }
+        parser.addArgument("--fsync-interval")
+                .type(Integer.class)
+                .dest("fsyncinterval")
+                .setDefault(0)
+                .required(false)
+                .help("milliseconds over which writes are gathered and fsync'd together (0 to not fsync)");
 
-    public List<Object> getToCWriter(Path dataDir) throws IOException {
-        String[] header = {"position","docid","date","court","title"};
-        Path tocFile = dataDir.resolve("toc.csv");
+        parser.addArgument("--mem-budget")
+                .type(Integer.class)
+                .dest("membudget")
+                .setDefault(0)
+                .required(false)
+                .help("MB of API responses held in memory at once before fetchers wait (0 for a quarter of the max heap)");
 
-        Writer handler = Files.newBufferedWriter(tocFile,StandardCharsets.UTF_8,StandardOpenOption.CREATE,StandardOpenOption.WRITE,StandardOpenOption.TRUNCATE_EXISTING);
+        parser.addArgument("--spill-size")
+                .type(Integer.class)
+                .dest("spillsize")
+                .setDefault(16)
+                .required(false)
+                .help("MB above which a response is streamed to a temp file before it is loaded");
 
-        CSVWriter csvWriter = new CSVWriter(handler);
-        csvWriter.writeNext(header);
-        return Arrays.asList(handler,csvWriter);
-    }
+        parser.addArgument("--split")
+                .type(Integer.class)
+                .dest("splitsize")
+                .setDefault(0)
+                .required(false)
+                .help("with -S mostrecent/leastrecent, split a -q/-c crawl into date ranges of at most this many results and fetch them in parallel (0 to disable)");
 
-    public Path getDocPath(String docSource, String publishDate) throws Exception {
-        Path dataDir = Paths.get(this.datadir,docSource);
-        IKApiMain.mkDir(dataDir);
-        LocalDate date = IKApiMain.getDateObj(publishDate);
-        dataDir = Paths.get(dataDir.toString(),String.valueOf(date.getYear()));
-        IKApiMain.mkDir(dataDir);
-        Path docPath = Paths.get(dataDir.toString(),date.toString());
-        IKApiMain.mkDir(docPath);
-        return docPath;
-    }
+        parser.addArgument("--plan")
+                .dest("plan")
+                .action(Arguments.storeTrue())
+                .required(false)
+                .setDefault(false)
+                .help("Fetch only the first result page of each -q/-Q/-c query and report found, pages, API calls and projected duration");
+
+        parser.addArgument("--plan-overlap")
+                .dest("planoverlap")
+                .action(Arguments.storeTrue())
+                .required(false)
+                .setDefault(false)
+                .help("With --plan, estimate the overlap of results across queries from their first pages");
+
+        parser.addArgument("--verify")
+                .dest("verify")
+                .action(Arguments.storeTrue())
+                .required(false)
+                .setDefault(false)
+                .help("Check DATADIR for truncated docs, unknown or (with -o) missing originals and write DATADIR/repair.txt");
+
+        parser.addArgument("--repair")
+                .dest("repair")
+                .action(Arguments.storeTrue())
+                .required(false)
+                .setDefault(false)
+                .help("Re-fetch everything listed in DATADIR/repair.txt");
+
+        parser.addArgument("--build-index")
+                .dest("buildindex")
+                .action(Arguments.storeTrue())
+                .required(false)
+                .setDefault(false)
+                .help("Build a local search index over the docs already downloaded into DATADIR");
+
+        parser.addArgument("--local-search")
+                .dest("localsearch")
+                .required(false)
+                .help("Search the local index instead of the API (terms, doctypes:, fromdate:, todate:)");
+
+        parser.addArgument("-F","--fragfile")
+                .dest("fragfile")
+                .required(false)
+                .help("file of docid<TAB>query lines to fetch docfragments for in bulk into DATADIR/docfragments");
+
+        parser.addArgument("--shard")
+                .dest("shard")
+                .action(Arguments.storeTrue())
+                .required(false)
+                .setDefault(false)
+                .help("Share the work with other nodes running on the same datadir through lease files in DATADIR/leases");
+
+        parser.addArgument("--node-id")
+                .dest("nodeid")
+                .required(false)
+                .help("name of this node in lease files and originals journals (default: hostname-pid)");
+
+        parser.addArgument("--lease-ttl")
+                .type(Integer.class)
+                .dest("leasettl")
+                .setDefault(300)
+                .required(false)
+                .help("seconds after which the lease of an unresponsive node is reclaimed");
+
+        parser.addArgument("--run-id")
+                .dest("runid")
+                .setDefault("default")
+                .required(false)
+                .help("with --shard, work finished under this run id is skipped; use a new one to fetch everything again");
 
-    public Path getDocpathByPosition(Path dataDir, int current) {
-        Path docPath = Paths.get(dataDir.toString(),String.valueOf(current));
-        IKApiMain.mkDir(docPath);
-        return docPath;
+        return parser;
     }
 }
 
@@ -316,6 +391,7 @@ class IKApi
     private static final Logger ikApiLogger = Logger.getLogger("ikapi");
 
     private Map<String,String> headers;
+    private TokenPool tokens;
     private  String baseHost;
     private FileStorage storage;
     private Integer maxCites;
@@ -323,7 +399,6 @@ class IKApi
     private Boolean orig;
     private Integer maxPages;
     private Boolean pathBySrc;
-    private BlockingQueue<String> queue;
     private Integer numWorkers;
     private Boolean addedToday;
     private String fromDate;
@@ -331,21 +406,41 @@ class IKApi
     private  String sortBy;
     private Boolean csvOutput;
     private Boolean docsCount;
+    private ResultLog resultLog;
+    private LeaseManager leases;
+    private OriginalsQueue originals;
+    private final SingleFlight<String> inFlight = new SingleFlight<>();
+    private RateLimiter rateLimiter;
+    private long splitSize;
+    private long connectTimeoutMillis;
+    private long readTimeoutMillis;
+    private long deadlineMillis;
+    private boolean hedge;
+    private final LatencyTracker latencies = new LatencyTracker();
+    private ByteBudget budget;
+    private final ExecutorService hedgePool = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "ikapi-hedge");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final LocalDate SPLIT_START = LocalDate.of(1800, 1, 1);
+    private double rate;
 
-    public IKApi(Namespace ns, FileStorage fileStorage)
+    public IKApi(Namespace ns, FileStorage fileStorage) throws IOException
     {
         this.headers = Map.of(
-                "Authorization", String.format("Token %s", ns.getString("token")),
                 "Accept", "application/json"
         );
-        this.baseHost = "api.indiankanoon.org";
+        this.tokens = TokenPool.load(ns.getString("token"), ns.getString("tokenfile"), ns.getDouble("tokenrate"),
+                ns.getString("tokenpolicy").equals("budget"), ns.getInt("quarantine") * 1000L);
+        // ikapi.host points a run at another server, such as a local stub
+        this.baseHost = System.getProperty("ikapi.host", "api.indiankanoon.org");
         this.storage = fileStorage;
         this.maxCites = ns.getInt("maxcites");
         this.maxCitedBy = ns.getInt("maxcitedby");
         this.orig = ns.getBoolean("orig");
         this.maxPages = ns.getInt("maxpages");
         this.pathBySrc = ns.getBoolean("pathbysrc");
-        this.queue = new LinkedBlockingQueue<>(20);
         this.numWorkers = ns.getInt("numworkers");
         this.addedToday = ns.getBoolean("addedtoday");
         this.fromDate = ns.getString("fromdate");
@@ -358,43 +453,243 @@ class IKApi
         {
             this.maxPages = 100;
         }
+        if(ns.getBoolean("resultlog"))
+        {
+            this.resultLog = new ResultLog(fileStorage.getResultLogPath());
+        }
+        this.splitSize = ns.getInt("splitsize");
+        if(this.splitSize > 0 && !isDateSort(this.sortBy))
+        {
+            ikApiLogger.warning("--split needs -S mostrecent or -S leastrecent, crawling without it");
+        }
+        this.connectTimeoutMillis = ns.getInt("connecttimeout") * 1000L;
+        this.readTimeoutMillis = ns.getInt("readtimeout") * 1000L;
+        this.deadlineMillis = ns.getInt("deadline") * 1000L;
+        this.hedge = ns.getBoolean("hedge");
+        long memBudget = ns.getInt("membudget") * 1024L * 1024L;
+        if(memBudget <= 0)
+        {
+            memBudget = Runtime.getRuntime().maxMemory() / 4;
+        }
+        this.budget = new ByteBudget(memBudget, ns.getInt("spillsize") * 1024L * 1024L);
+        fileStorage.startWriter(ns.getInt("iothreads"), ns.getInt("writequeue"), ns.getInt("fsyncinterval"), this.budget);
+        this.rate = ns.getDouble("rate");
+        if(this.rate > 0)
+        {
+            this.rateLimiter = new RateLimiter(this.rate);
+        }
+        String nodeId = ns.getString("nodeid") == null ? LeaseManager.defaultNodeId() : ns.getString("nodeid");
+        if(this.orig)
+        {
+            this.originals = new OriginalsQueue(fileStorage.getOriginalsPath(), nodeId, ns.getInt("leasettl") * 1000L,
+                    ns.getInt("origworkers"), ns.getInt("origkbps") * 1024L, ns.getDouble("origrate"), this::saveOriginalDoc);
+        }
+        if(ns.getBoolean("shard"))
+        {
+            this.leases = new LeaseManager(fileStorage.getLeasePath(), ns.getString("runid"), nodeId,
+                    ns.getInt("leasettl") * 1000L);
+        }
+    }
+
+    public void close() {
+        if(this.originals != null)
+        {
+            try {
+                this.originals.close();
+            } catch (IOException e) {
+                ikApiLogger.severe("Error closing originals queue: " + e.getMessage());
+            }
+        }
+        if(this.leases != null)
+        {
+            this.leases.close();
+        }
+        if(this.resultLog != null)
+        {
+            try {
+                this.resultLog.close();
+            } catch (IOException e) {
+                ikApiLogger.severe("Error closing result log: " + e.getMessage());
+            }
+        }
+        this.storage.close();
+        this.tokens.logSummary();
+        this.hedgePool.shutdownNow();
     }
 
 
     public boolean saveDocFragment(Integer docId, String query) throws Exception {
         boolean success = false;
-        String jsonStr = fetchDocFragment(docId,query);
+        ByteBudget.Scope scope = this.budget.enter();
+        try {
+            String jsonStr = fetchDocFragment(docId,query);
 
-        if (jsonStr == null || jsonStr.isEmpty())
-        {
-            return success;
-        }
+            if (jsonStr == null || jsonStr.isEmpty())
+            {
+                return success;
+            }
 
-        String jsonPath = this.storage.getJsonPath(String.format("%d q: %s",docId,query));
-        success = this.storage.saveJson(jsonStr,jsonPath);
+            String jsonPath = this.storage.getJsonPath(String.format("%d q: %s",docId,query));
+            success = this.storage.saveJson(jsonStr,jsonPath).get();
+        } finally {
+            scope.close();
+        }
         return success;
 
     }
 
+    /**
+     * Bulk docfragment mode: streams "docid TAB query" lines from pairFile
+     * and fetches them on numWorkers threads into one FragmentStore,
+     * skipping pairs saved by earlier runs.
+     */
+    public void saveDocFragments(Path pairFile) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(this.numWorkers);
+        Semaphore inFlight = new Semaphore(this.numWorkers * 2);
+        AtomicInteger saved = new AtomicInteger();
+        int skipped = 0;
+        try(FragmentStore store = new FragmentStore(this.storage.getFragmentPath());
+            BufferedReader reader = Files.newBufferedReader(pairFile, StandardCharsets.UTF_8))
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                String[] parts = line.trim().split("\\s+", 2);
+                if(parts.length < 2 || !parts[0].matches("\\d+"))
+                {
+                    if(!line.isBlank())
+                    {
+                        ikApiLogger.warning("Skipping bad docfragment line: " + line);
+                    }
+                    continue;
+                }
+                int docId = Integer.parseInt(parts[0]);
+                String query = parts[1].trim();
+                if(!store.claim(docId, query))
+                {
+                    skipped++;
+                    continue;
+                }
+                inFlight.acquire();
+                executor.execute(() -> {
+                    try {
+                        if(saveDocFragment(store, docId, query))
+                        {
+                            saved.incrementAndGet();
+                        }
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ikApiLogger.severe("Interrupted while fetching docfragments");
+        } finally {
+            executor.shutdownNow();
+        }
+        ikApiLogger.info(String.format("Saved %d docfragment(s), %d already done", saved.get(), skipped));
+    }
+
+    private boolean saveDocFragment(FragmentStore store, int docId, String query) {
+        // the response stays reserved until it has been parsed and stored
+        ByteBudget.Scope scope = this.budget.enter();
+        try {
+            String jsonStr = fetchDocFragment(docId, query);
+            JSONObject fragment = new JSONObject(jsonStr);
+            if(fragment.has("errmsg"))
+            {
+                ikApiLogger.warning(String.format("Error in docfragment %d q: %s %s", docId, query, fragment.optString("errmsg")));
+            } else {
+                store.append(docId, query, fragment);
+                return true;
+            }
+        } catch (Exception e) {
+            ikApiLogger.warning(String.format("Error in docfragment %d q: %s %s", docId, query, e.getMessage()));
+        } finally {
+            scope.close();
+        }
+        store.unclaim(docId, query);
+        return false;
+    }
+
     private String fetchDocFragment(Integer docId, String query) throws Exception{
         String encodedQuery = URLEncoder.encode(query,StandardCharsets.UTF_8);
         String url = String.format("/docfragment/%d/?formInput=%s",docId,encodedQuery);
         return callApi(url);
     }
 
+    /**
+     * Concurrent calls for the same endpoint (e.g. two queries hitting the
+     * same doc at once) share a single request and its result.
+     */
     private String callApi(String url)  {
+        return this.inFlight.run(normaliseUrl(url), () -> {
+            Attempt answer = callApiWithRetries(url, false);
+            return answer == null ? null : answer.text;
+        });
+    }
+
+    /**
+     * Like callApi, but a successful response body is left in a temp file,
+     * which then belongs to the caller, instead of being read into memory.
+     * Returns null if there was no such response. Not shared between
+     * concurrent calls, as the file is moved away by whoever gets it.
+     */
+    private Path callApiToFile(String url)  {
+        Attempt answer = callApiWithRetries(url, true);
+        return answer == null ? null : answer.file;
+    }
+
+    static String normaliseUrl(String url) {
+        int q = url.indexOf('?');
+        if(q < 0)
+        {
+            return url;
+        }
+        String[] params = url.substring(q + 1).split("&");
+        Arrays.sort(params);
+        return url.substring(0, q) + "?" + String.join("&", params);
+    }
+
+    private Attempt callApiWithRetries(String url, boolean toFile)  {
+        try (ByteBudget.Scope scope = this.budget.enter()) {
+            return callApiWithRetries(url, toFile, scope);
+        }
+    }
+
+    /**
+     * Returns the last attempt that got a response, good or not, with the
+     * budget its body holds handed to scope. The bodies of earlier attempts
+     * are given back as soon as they are superseded.
+     */
+    private Attempt callApiWithRetries(String url, boolean toFile, ByteBudget.Scope scope)  {
         int count = 0;
-        String results =null;
+        Attempt answer = null;
+        Deadline deadline = Deadline.current();
 
         while(count < 3){
+            if(deadline != null && deadline.expired())
+            {
+                ikApiLogger.warning(String.format("Deadline exceeded, giving up on %s",url));
+                break;
+            }
             try {
-                results = callApiDirect(url);
-                if (results == null ||  Pattern.compile("error code:").matcher(results).find())
+                if(this.rateLimiter != null)
+                {
+                    this.rateLimiter.acquire();
+                }
+                answer = callOnce(url, toFile, deadline, count + 1, scope);
+                if (!answer.answered() || (answer.text != null && Pattern.compile("error code:").matcher(answer.text).find()))
 
                 {
-                    ikApiLogger.warning(String.format("Error in call_api %s %s",url,results));
+                    ikApiLogger.warning(String.format("Error in call_api %s %s",url,answer.text));
+                    // nothing is held while waiting; only the error text is kept, for when this was the last try
+                    answer.discard(this.budget);
                     count++;
-                    Thread.sleep(count * 10_000L);
+                    backoff(url, count, answer.answered() ? answer.text : "no response", deadline);
                     continue;
                 }
                 break;
@@ -402,239 +697,1123 @@ class IKApi
                 ikApiLogger.warning(String.format("Error in call_api %s %s",url,e.getMessage()));
                 count++;
                 try {
-                    Thread.sleep(count * 10_000L);
+                    backoff(url, count, String.valueOf(e.getMessage()), deadline);
                 } catch (InterruptedException ie) {
                     ikApiLogger.warning(String.format("Error in call_api %s %s",url,ie.getMessage()));
                     Thread.currentThread().interrupt();
                     break;
                 }}}
-        return results;
+        if(answer != null)
+        {
+            scope.add(answer.takeReserved());
+        }
+        return answer;
+    }
+
+    private void backoff(String url, int count, String reason, Deadline deadline) throws InterruptedException {
+        ApiRetryEvent event = FlightRecorder.isInitialized() ? new ApiRetryEvent() : null;
+        if(event != null)
+        {
+            event.begin();
+        }
+        Thread.sleep(Deadline.cap(count * 10_000L, deadline));
+        if(event != null && event.shouldCommit())
+        {
+            event.endpoint = url;
+            event.attempt = count;
+            event.reason = reason;
+            event.commit();
+        }
+    }
+
+    /**
+     * One attempt at a call. With --hedge, if no answer has come after the
+     * p95 latency of recent calls to the same kind of endpoint, the same
+     * (idempotent) request is sent again and whichever answers first wins;
+     * the other one is disconnected and its body given back.
+     */
+    private Attempt callOnce(String url, boolean toFile, Deadline deadline, int attemptNo, ByteBudget.Scope scope) throws Exception {
+        String kind = endpointKind(url);
+        long p95 = this.hedge ? this.latencies.p95(kind) : -1;
+        if(p95 < 0)
+        {
+            Attempt only = new Attempt(false, toFile);
+            timedCall(url, kind, deadline, attemptNo, only, scope);
+            return only;
+        }
+        CompletableFuture<Attempt> winner = new CompletableFuture<>();
+        AtomicInteger failures = new AtomicInteger();
+        Attempt[] attempts = {new Attempt(false, toFile), new Attempt(true, toFile)};
+        java.util.function.Function<Attempt, Runnable> attempt = a -> () -> {
+            try {
+                if(a.hedged && this.rateLimiter != null)
+                {
+                    // the copy counts against --rate like any other request
+                    this.rateLimiter.acquire();
+                }
+                timedCall(url, kind, deadline, attemptNo, a, scope);
+                if(!winner.complete(a))
+                {
+                    a.discard(this.budget);
+                    return;
+                }
+                for(Attempt other: attempts)
+                {
+                    if(other != a)
+                    {
+                        other.cancel();
+                    }
+                }
+            } catch (Exception e) {
+                if(failures.incrementAndGet() == 2)
+                {
+                    winner.completeExceptionally(e);
+                }
+            }
+        };
+        CompletableFuture.runAsync(attempt.apply(attempts[0]), this.hedgePool);
+        try {
+            return winner.get(Deadline.cap(p95, deadline), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            ikApiLogger.fine(String.format("Hedging %s after %d ms",url,p95));
+            CompletableFuture.runAsync(attempt.apply(attempts[1]), this.hedgePool);
+        }
+        try {
+            return winner.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    /**
+     * One attempt at a call, or one of the two copies of a hedged call, and
+     * what came back from it: the body as text, or with toFile a successful
+     * body in a temp file. Cancelling it disconnects its connection, or
+     * stops it from opening one.
+     */
+    private static final class Attempt
+    {
+        final boolean hedged;
+        final boolean toFile;
+        String token;
+        int status = -1;
+        long bytes = 0;
+        String text;
+        Path file;
+        // bytes of the budget reserved for text
+        long reserved = 0;
+        private HttpURLConnection connection;
+        private boolean cancelled = false;
+
+        Attempt(boolean hedged, boolean toFile)
+        {
+            this.hedged = hedged;
+            this.toFile = toFile;
+        }
+
+        boolean answered() {
+            return text != null || file != null;
+        }
+
+        long takeReserved() {
+            long n = reserved;
+            reserved = 0;
+            return n;
+        }
+
+        /** Gives back the budget and temp file of a body that will not be used. */
+        void discard(ByteBudget budget) {
+            budget.release(takeReserved());
+            if(file != null)
+            {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    ikApiLogger.fine(String.format("Error deleting %s %s",file,e.getMessage()));
+                }
+                file = null;
+            }
+        }
+
+        synchronized boolean attach(HttpURLConnection c) {
+            if(cancelled)
+            {
+                return false;
+            }
+            connection = c;
+            return true;
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            if(connection != null)
+            {
+                connection.disconnect();
+            }
+        }
+
+        synchronized boolean cancelled() {
+            return cancelled;
+        }
+    }
+
+    private void timedCall(String url, String kind, Deadline deadline, int attemptNo, Attempt attempt, ByteBudget.Scope scope) throws Exception {
+        long start = System.nanoTime();
+        // loading the first event class starts up JFR, so none is made unless a recording has been
+        ApiCallEvent event = FlightRecorder.isInitialized() ? new ApiCallEvent() : null;
+        if(event != null)
+        {
+            event.begin();
+        }
+        try {
+            callApiDirect(url, deadline, attempt, scope);
+        } catch (Exception e) {
+            attempt.discard(this.budget);
+            throw e;
+        } finally {
+            if(event != null && event.shouldCommit())
+            {
+                event.endpoint = url;
+                event.attempt = attemptNo;
+                event.hedged = attempt.hedged;
+                event.token = attempt.token;
+                event.status = attempt.status;
+                event.bytes = attempt.bytes;
+                event.commit();
+            }
+        }
+        if(attempt.answered())
+        {
+            this.latencies.record(kind, (System.nanoTime() - start) / 1_000_000L);
+        }
+    }
+
+    private void callApiDirect(String endPoint, Deadline deadline, Attempt attempt, ByteBudget.Scope scope) throws Exception {
+        TokenPool.Token token;
+        try {
+            token = this.tokens.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw e;
+        }
+        attempt.token = token.label();
+        try {
+            callApiWithToken(endPoint, token, deadline, attempt, scope);
+        } finally {
+            // a hedged copy cut off by us says nothing about the token
+            if(!attempt.cancelled())
+            {
+                this.tokens.report(token, attempt.status, attempt.answered(), attempt.text);
+            }
+        }
+    }
+
+    private void callApiWithToken(String endPoint, TokenPool.Token token, Deadline deadline, Attempt attempt, ByteBudget.Scope scope) throws Exception {
+        URI uri = URI.create("https://" + this.baseHost + endPoint);
+        URL url = uri.toURL();
+        HttpsURLConnection  connection = (HttpsURLConnection)  url.openConnection();
+        if(!attempt.attach(connection))
+        {
+            throw new IOException("the other copy of the request answered first");
+        }
+        connection.setRequestMethod("POST");
+        for (Map.Entry<String, String> header : this.headers.entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+        connection.setRequestProperty("Authorization", token.header);
+        connection.setConnectTimeout((int) Deadline.cap(this.connectTimeoutMillis, deadline));
+        connection.setReadTimeout((int) Deadline.cap(this.readTimeoutMillis, deadline));
+        connection.setDoOutput(true);
+        connection.connect();
+        try(CountingInputStream is = new CountingInputStream(connection.getInputStream()))
+        {
+            if(attempt.toFile)
+            {
+                attempt.file = spill(is, endpointKind(endPoint));
+            } else {
+                attempt.text = readBody(is, endpointKind(endPoint), connection.getContentLengthLong(), attempt, scope);
+            }
+            attempt.bytes = is.count();
+        } catch (IOException ie)
+        {
+            if(attempt.cancelled())
+            {
+                throw ie;
+            }
+            InputStream  errorStream = connection.getErrorStream();
+            if (errorStream != null) {
+                CountingInputStream counted = new CountingInputStream(errorStream);
+                try (BufferedReader br = new BufferedReader(
+                        new InputStreamReader(counted, StandardCharsets.UTF_8))) {
+                    StringBuilder errorResponse = new StringBuilder();
+                    String line;
+                    while ((line = br.readLine()) != null) {
+                        errorResponse.append(line);
+                    }
+                    attempt.text = errorResponse.toString();
+                }
+                attempt.bytes = counted.count();
+            }
+        }
+        try {
+            attempt.status = connection.getResponseCode();
+        } catch (IOException e) {
+            // no status line, e.g. after a read timeout
+        }
+    }
+
+    /** "doc", "origdoc", "search", ... for the running size estimates. */
+    static String endpointKind(String endPoint) {
+        int end = endPoint.indexOf('/', 1);
+        return end > 0 ? endPoint.substring(1, end) : endPoint;
+    }
+
+    /**
+     * Reads a response body within the byte budget, which attempt holds
+     * until it is used or discarded. It is read straight into memory if its
+     * size is known or guessed to be within the spill size and the budget
+     * has room; otherwise it goes to a temp file first and is loaded once
+     * the budget allows.
+     */
+    private String readBody(InputStream is, String kind, long contentLength, Attempt attempt, ByteBudget.Scope scope) throws IOException {
+        long expected = contentLength >= 0 ? contentLength : this.budget.estimate(kind);
+        long cost = expected * ByteBudget.EXPANSION;
+        if(expected <= this.budget.spillBytes() && this.budget.tryReserve(cost))
+        {
+            attempt.reserved += cost;
+            byte[] body = is.readAllBytes();
+            this.budget.record(kind, body.length);
+            long extra = (long) body.length * ByteBudget.EXPANSION - cost;
+            if(extra > 0)
+            {
+                this.budget.force(extra);
+            } else {
+                this.budget.release(-extra);
+            }
+            attempt.reserved += extra;
+            return new String(body, StandardCharsets.UTF_8);
+        }
+        Path spill = spill(is, kind);
+        try {
+            long size = Files.size(spill);
+            try {
+                this.budget.reserve(size * ByteBudget.EXPANSION, scope);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for memory");
+            }
+            attempt.reserved += size * ByteBudget.EXPANSION;
+            return new String(Files.readAllBytes(spill), StandardCharsets.UTF_8);
+        } finally {
+            Files.deleteIfExists(spill);
+        }
+    }
+
+    /** Streams a response body to a temp file, which the caller is to delete. */
+    private Path spill(InputStream is, String kind) throws IOException {
+        Path spill = Files.createTempFile("ikapi-", ".body");
+        try {
+            long size = Files.copy(is, spill, StandardCopyOption.REPLACE_EXISTING);
+            this.budget.record(kind, size);
+            ikApiLogger.fine(String.format("Spilled %d byte %s response to %s", size, kind, spill));
+            return spill;
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(spill);
+            throw e;
+        }
+    }
+
+    public Set<Integer> fetchCitedByDocs(Integer docId,Optional<String> logStmt) throws  Exception{
+        String q =  String.format("citedby:%d",docId);
+        q = makeQuery(q);
+        return saveSearchResults(q,logStmt);
+    }
+    /**
+     * Fetches and saves one doc. The future completes with true once the
+     * json is on disk, or with false if it was not saved (already there,
+     * being saved by another node, or not fetched).
+     */
+    public CompletableFuture<Boolean> downloadDoc(Integer docId, String dataDir) {
+        DocDownloadEvent event = FlightRecorder.isInitialized() ? new DocDownloadEvent() : null;
+        if(event != null)
+        {
+            event.begin();
+        }
+        CompletableFuture<Boolean> saved;
+        ByteBudget.Scope scope = this.budget.enter();
+        try {
+            saved = lockAndSaveDoc(docId, dataDir);
+        } finally {
+            scope.close();
+        }
+        if(event == null)
+        {
+            return saved;
+        }
+        return saved.whenComplete((ok, e) -> {
+            if(event.shouldCommit())
+            {
+                event.docId = docId;
+                event.dataDir = dataDir;
+                event.saved = ok != null && ok;
+                event.commit();
+            }
+        });
+    }
+
+    private CompletableFuture<Boolean> lockAndSaveDoc(Integer docId, String dataDir) {
+        if(this.leases == null)
+        {
+            return fetchAndSaveDoc(docId, dataDir);
+        }
+        // with --shard only one node writes a given doc path
+        String jsonPath = this.storage.getJsonOrigPath(dataDir,docId)[0];
+        String unit = LeaseManager.unitId("d", jsonPath);
+        try {
+            if(!this.leases.tryLock(unit))
+            {
+                ikApiLogger.fine(String.format("Doc %d is being saved by another node",docId));
+                return CompletableFuture.completedFuture(false);
+            }
+        } catch (IOException e) {
+            ikApiLogger.warning(String.format("Error locking doc %d %s",docId,e.getMessage()));
+            return CompletableFuture.completedFuture(false);
+        }
+        CompletableFuture<Boolean> saved;
+        try {
+            saved = fetchAndSaveDoc(docId, dataDir);
+        } catch (RuntimeException e) {
+            this.leases.release(unit);
+            throw e;
+        }
+        // held until the json is on disk, so no other node fetches it meanwhile
+        return saved.whenComplete((ok, e) -> this.leases.release(unit));
+    }
+
+    private CompletableFuture<Boolean> fetchAndSaveDoc(Integer docId, String dataDir) {
+        CompletableFuture<Boolean> saved = CompletableFuture.completedFuture(false);
+        boolean orig_needed = this.orig;
+        String[] paths= this.storage.getJsonOrigPath(dataDir,docId);
+        String jsonPath = paths[0];
+        String origPath = paths[1];
+
+        if(!this.storage.exists(jsonPath))
+        {
+            String jsonStr = fetchDoc(docId);
+            JSONObject d;
+            try
+            {
+                d = new JSONObject(jsonStr);
+            } catch (JSONException e) {
+                ikApiLogger.severe(String.format("Error in getting doc %d %s",docId,e.getMessage()));
+                return saved;
+            }
+
+            if(d.has("errmsg"))
+            {
+                ikApiLogger.severe(String.format("Error in getting doc %d",docId));
+                return saved;
+            }
+
+            String title = d.optString("title","untitled");
+            saved = this.storage.saveJson(jsonStr,jsonPath).thenApply(ok -> {
+                if(ok)
+                {
+                    ikApiLogger.info(String.format("Saved %s",title));
+                }
+                return ok;
+            });
+
+            if(orig_needed)
+            {
+                if(!d.optBoolean("courtcopy",false))
+                {
+                    orig_needed = false;
+                }
+            }
+        }
+
+        if(orig_needed && !this.storage.existsOriginal(origPath))
+        {
+            this.originals.enqueue(docId, origPath);
+        }
+        return saved;
+    }
+
+    /**
+     * Re-fetches everything in a repair list written by --verify on
+     * numWorkers threads, then rewrites the list with what is still broken.
+     */
+    public void repair(Path repairList) throws IOException {
+        List<String> lines = Files.readAllLines(repairList, StandardCharsets.UTF_8);
+        Queue<String> left = new ConcurrentLinkedQueue<>();
+        ExecutorService executor = Executors.newFixedThreadPool(this.numWorkers);
+        for(String line: lines)
+        {
+            if(!line.isBlank())
+            {
+                executor.execute(() -> {
+                    if(!repairOne(line))
+                    {
+                        left.add(line);
+                    }
+                });
+            }
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ikApiLogger.severe("Interrupted while repairing");
+            return;
+        }
+        FileStorage.writeAtomically(repairList, (String.join("\n", left) + (left.isEmpty() ? "" : "\n")).getBytes(StandardCharsets.UTF_8));
+        ikApiLogger.info(String.format("Repaired %d of %d problem(s)", lines.size() - left.size(), lines.size()));
+    }
+
+    private boolean repairOne(String line) {
+        String[] parts = line.split("\t", 3);
+        if(parts.length < 3)
+        {
+            return false;
+        }
+        try {
+            if(parts[2].equals(CorpusVerifier.TEMP_FILE))
+            {
+                Files.deleteIfExists(Paths.get(parts[1], parts[0]));
+                return true;
+            }
+            int docId = Integer.parseInt(parts[0]);
+            String[] paths = this.storage.getJsonOrigPath(parts[1], docId);
+            switch (parts[2])
+            {
+                case CorpusVerifier.TRUNCATED:
+                    Files.deleteIfExists(Paths.get(paths[0]));
+                    return downloadDoc(docId, parts[1]).get();
+                case CorpusVerifier.UNKNOWN_ORIGINAL:
+                    Files.deleteIfExists(Paths.get(paths[1] + ".unkwn"));
+                    if(saveOriginalDoc(docId, paths[1]).get() < 0)
+                    {
+                        return false;
+                    }
+                    return this.storage.existsOriginal(paths[1])
+                            && !Files.exists(Paths.get(paths[1] + ".unkwn"));
+                case CorpusVerifier.MISSING_ORIGINAL:
+                    if(saveOriginalDoc(docId, paths[1]).get() < 0)
+                    {
+                        return false;
+                    }
+                    return this.storage.existsOriginal(paths[1]);
+                default:
+                    return false;
+            }
+        } catch (IOException | NumberFormatException | ExecutionException e) {
+            ikApiLogger.warning(String.format("Error repairing %s %s", line, e.getMessage()));
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Fetches one original for the OriginalsQueue. The future completes,
+     * once the original is on disk, with the size of the response, or with
+     * -1 if the API could not be reached or the original could not be
+     * saved, so that it is retried by a later run. The response is never held in memory: it
+     * goes to a temp file, and is decoded from there into place.
+     */
+    private CompletableFuture<Long> saveOriginalDoc(int docId, String origPath) {
+        if(this.storage.existsOriginal(origPath))
+        {
+            return CompletableFuture.completedFuture(0L);
+        }
+        Path body = fetchOrigDoc(docId);
+        if(body == null)
+        {
+            return CompletableFuture.completedFuture(-1L);
+        }
+        return this.storage.saveOriginal(body,origPath).thenApply(size -> {
+            if(size >= 0)
+            {
+                ikApiLogger.info(String.format("Saved original %d",docId));
+            }
+            return size;
+        });
+    }
+
+    private Path fetchOrigDoc(Integer docId) {
+        String url = String.format("/origdoc/%d/",docId);
+        return callApiToFile(url);
+    }
+
+    public String fetchDoc(Integer docId) {
+        String url = String.format("/doc/%d/",docId);
+        List<String> queryParams = new ArrayList<>();
+        if(maxCites>0)
+        {
+            queryParams.add(String.format("maxcites=%d",maxCites));
+        }
+        if(maxCitedBy>0)
+        {
+            queryParams.add(String.format("maxcitedby=%d",maxCitedBy));
+        }
+        if(!queryParams.isEmpty())
+        {
+            url +=  "?"+String.join("&",queryParams);
+        }
+        return callApi(url);
+    }
+
+    public Set<Integer> saveSearchResults(String q,Optional<String> logStmt) {
+        boolean entered = Deadline.enterIfAbsent(Deadline.after(this.deadlineMillis));
+        try {
+            return collectSearchResults(q, logStmt);
+        } finally {
+            if(entered)
+            {
+                Deadline.exit();
+            }
+        }
+    }
+
+    private Set<Integer> collectSearchResults(String q,Optional<String> logStmt) {
+        if(this.leases != null && !this.docsCount)
+        {
+            return saveSearchResultsSharded(q);
+        }
+        Set<Integer> uniqueDocs = new HashSet<>();
+        String log = logStmt.orElse("");
+        SearchCursor cursor = null;
+        try {
+            cursor = openSearch(q);
+            List<SearchHit> hits;
+            while ((hits = nextPage(cursor)) != null)
+            {
+                for(SearchHit hit: hits)
+                {
+                    if(!this.docsCount) {
+                        downloadDoc(hit.docId, hit.docPath.toString());
+                    }
+                    uniqueDocs.add(hit.docId);
+                }
+            }
+            if(this.docsCount)
+            {
+                ikApiLogger.info(String.format("%d document(s) found for query: %s %s",uniqueDocs.size(),q,log));
+            }
+
+        } catch (Exception e) {
+            ikApiLogger.severe("Exception while saving search results: " + e.getMessage());
+        } finally {
+            closeSearch(cursor);
+        }
+        return uniqueDocs;
+    }
+
+    /**
+     * With --shard a single query is split into page ranges of maxPages
+     * pages each, claimed one at a time, so that all nodes can work on it.
+     * Each range writes its own toc-PAGENUM.csv and once all of them are
+     * done one node merges them into toc.csv.
+     */
+    private Set<Integer> saveSearchResultsSharded(String q) {
+        Set<Integer> uniqueDocs = new HashSet<>();
+        Deque<Integer> heldElsewhere = new ArrayDeque<>();
+        boolean failed = false;
+        try {
+            // stop claiming new ranges after one of ours fails, the next
+            // ones would most likely fail the same way
+            for(int pageNum = 0; pageNum < this.leases.getEnd(q) && !failed; pageNum += this.maxPages)
+            {
+                if(claimPageRange(q, pageNum, uniqueDocs))
+                {
+                    failed = !this.leases.isDone(pageUnit(q, pageNum));
+                } else if(!this.leases.isDone(pageUnit(q, pageNum))) {
+                    heldElsewhere.add(pageNum);
+                }
+            }
+            // wait for other nodes to finish their ranges, or for their leases to expire
+            while (!heldElsewhere.isEmpty())
+            {
+                Thread.sleep(this.leases.retryInterval());
+                for(int i = heldElsewhere.size(); i > 0; i--)
+                {
+                    int pageNum = heldElsewhere.poll();
+                    if(pageNum >= this.leases.getEnd(q))
+                    {
+                        continue;
+                    }
+                    if(claimPageRange(q, pageNum, uniqueDocs))
+                    {
+                        failed |= !this.leases.isDone(pageUnit(q, pageNum));
+                    } else if(!this.leases.isDone(pageUnit(q, pageNum))) {
+                        heldElsewhere.add(pageNum);
+                    }
+                }
+            }
+            if(failed)
+            {
+                ikApiLogger.warning(String.format("Results of q: %s are incomplete, run again with the same --run-id to resume", q));
+            } else if(this.csvOutput) {
+                mergeTocs(q);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            ikApiLogger.severe("Exception while saving search results: " + e.getMessage());
+        }
+        return uniqueDocs;
+    }
+
+    private String pageUnit(String q, int pageNum) {
+        return LeaseManager.unitId("p", q) + "-" + pageNum;
+    }
+
+    /**
+     * Claims and fetches one page range. Returns whether it was claimed; the
+     * range is marked done only if its results were all fetched.
+     */
+    private boolean claimPageRange(String q, int pageNum, Set<Integer> uniqueDocs) throws IOException {
+        String unit = pageUnit(q, pageNum);
+        if(!this.leases.tryClaim(unit))
+        {
+            return false;
+        }
+        SearchCursor cursor = null;
+        try {
+            cursor = openSearch(q, pageNum, String.format("toc-%d.csv", pageNum));
+            List<SearchHit> hits = nextPage(cursor);
+            if(hits == null && !cursor.exhausted)
+            {
+                // an error or the deadline, not the end of the results
+                this.leases.release(unit);
+                return true;
+            }
+            if(hits != null)
+            {
+                for(SearchHit hit: hits)
+                {
+                    downloadDoc(hit.docId, hit.docPath.toString());
+                    uniqueDocs.add(hit.docId);
+                }
+            }
+            if(cursor.exhausted)
+            {
+                this.leases.markEnd(q, hits == null ? pageNum : pageNum + this.maxPages);
+            }
+            this.leases.complete(unit);
+        } catch (Exception e) {
+            ikApiLogger.severe(String.format("Exception while saving page %d of q: %s %s", pageNum, q, e.getMessage()));
+            this.leases.release(unit);
+        } finally {
+            closeSearch(cursor);
+        }
+        return true;
+    }
+
+    /** Concatenates the toc-PAGENUM.csv of every page range into toc.csv. */
+    private void mergeTocs(String q) throws IOException {
+        String unit = LeaseManager.unitId("m", q);
+        if(!this.leases.tryClaim(unit))
+        {
+            return;
+        }
+        try {
+            Path dataDir = this.storage.getSearchPath(q);
+            // up to and including the empty range past the end, if it was fetched
+            List<Path> parts = new ArrayList<>();
+            for(int pageNum = 0; pageNum <= this.leases.getEnd(q); pageNum += this.maxPages)
+            {
+                parts.add(dataDir.resolve(String.format("toc-%d.csv", pageNum)));
+            }
+            TocWriter.merge(parts, dataDir.resolve("toc.csv"));
+            this.leases.complete(unit);
+            for(Path part: parts)
+            {
+                Files.deleteIfExists(part);
+            }
+        } finally {
+            this.leases.release(unit);
+        }
+    }
+
+    SearchCursor openSearch(String q) throws IOException {
+        return openSearch(q, 0, "toc.csv");
+    }
+
+    SearchCursor openSearch(String q, int pageNum, String tocName) throws IOException {
+        SearchCursor cursor = new SearchCursor(q);
+        // the API returns 10 results per page
+        cursor.pageNum = pageNum;
+        cursor.current = pageNum * 10 + 1;
+        if (!this.docsCount && (!this.pathBySrc || this.csvOutput))
+        {
+            cursor.dataDir = this.storage.getSearchPath(q);
+        }
+        if(!this.docsCount && this.csvOutput) {
+            cursor.writer = this.storage.getToCWriter(cursor.dataDir, tocName);
+        }
+        return cursor;
+    }
+
+    /**
+     * Fetches the next batch of result pages for the cursor and writes its
+     * TOC rows. Returns null once the results are exhausted.
+     */
+    List<SearchHit> nextPage(SearchCursor cursor) throws Exception {
+        if(cursor.done)
+        {
+            return null;
+        }
+        SearchPageEvent event = FlightRecorder.isInitialized() ? new SearchPageEvent() : null;
+        if(event != null)
+        {
+            event.begin();
+        }
+        int pageNum = cursor.pageNum;
+        List<SearchHit> hits;
+        ByteBudget.Scope scope = this.budget.enter();
+        try {
+            hits = fetchPage(cursor);
+        } finally {
+            scope.close();
+        }
+        if(event != null && event.shouldCommit())
+        {
+            event.query = cursor.label;
+            event.pageNum = pageNum;
+            event.hits = hits == null ? 0 : hits.size();
+            event.commit();
+        }
+        return hits;
     }
 
-    private String callApiDirect(String endPoint) throws Exception {
-        URI uri = URI.create("https://" + this.baseHost + endPoint);
-        URL url = uri.toURL();
-        HttpsURLConnection  connection = (HttpsURLConnection)  url.openConnection();
-        connection.setRequestMethod("POST");
-        for (Map.Entry<String, String> header : this.headers.entrySet()) {
-            connection.setRequestProperty(header.getKey(), header.getValue());
+    private List<SearchHit> fetchPage(SearchCursor cursor) throws Exception {
+        String q = cursor.q;
+        int pageNum = cursor.pageNum;
+        Deadline deadline = Deadline.current();
+        if(deadline != null && deadline.expired())
+        {
+            ikApiLogger.warning(String.format("Deadline exceeded, stopping at pagenum: %d q: %s",pageNum,q));
+            cursor.done = true;
+            return null;
         }
-        connection.setDoOutput(true);
-        connection.connect();
-        String result;
-        try(InputStream is = connection.getInputStream();
-        InputStreamReader isr = new InputStreamReader(is,StandardCharsets.UTF_8);
-        BufferedReader br = new BufferedReader(isr))
+        String results =  search(q,pageNum,this.maxPages);
+        if(results == null)
         {
-            StringBuilder response = new StringBuilder();
-            String line;
-            while((line=br.readLine()) !=null)
-            {
-                response.append(line);
-            }
-            result = response.toString();
-        } catch (IOException ie)
+            ikApiLogger.warning(String.format("No results, pagenum: %d q: %s",pageNum,q));
+            cursor.done = true;
+            return null;
+        }
+        JSONObject obj = new JSONObject(results);
+        if(obj.has("errmsg"))
         {
-            InputStream  errorStream = connection.getErrorStream();
-            if (errorStream != null) {
-                try (BufferedReader br = new BufferedReader(
-                        new InputStreamReader(errorStream, StandardCharsets.UTF_8))) {
-                    StringBuilder errorResponse = new StringBuilder();
-                    String line;
-                    while ((line = br.readLine()) != null) {
-                        errorResponse.append(line);
-                    }
-                    result = errorResponse.toString();
+            ikApiLogger.warning(String.format("Error: %s, pagenum: %d q: %s",obj.getString("errmsg"),pageNum,q));
+            cursor.done = true;
+            return null;
+        }
+        if (!obj.has("docs")) {
+            cursor.done = true;
+            cursor.exhausted = true;
+            return null;
+        }
+
+        JSONArray docs = obj.getJSONArray("docs");
+        if(docs.isEmpty())
+        {
+            cursor.done = true;
+            cursor.exhausted = true;
+            return null;
+        }
+        // a short batch is the last one
+        if(docs.length() < 10 * maxPages)
+        {
+            cursor.exhausted = true;
+        }
+        ikApiLogger.warning(String.format("Num results: %d , pagenum: %d found: %s q: %s", docs.length(), pageNum, obj.getString("found"), q));
+
+        List<SearchHit> hits = new ArrayList<>(docs.length());
+        for(int i=0;i<docs.length();i++)
+        {
+            JSONObject doc = docs.getJSONObject(i);
+            String docId = String.valueOf(doc.get("tid"));
+            String title = doc.getString("title");
+            String publishDate = doc.getString("publishdate");
+            String court =  doc.getString("docsource");
+            if(cursor.writer != null) {
+                String[] tocRow = {String.valueOf(cursor.current), docId, publishDate, court, title};
+
+                cursor.writer.writeRow(tocRow);
+            }
+            Path docPath = null;
+            if(!this.docsCount) {
+                if (pathBySrc) {
+                    docPath = this.storage.getDocPath(court, publishDate);
+                } else {
+                    docPath = this.storage.getDocpathByPosition(cursor.dataDir, cursor.current);
                 }
             }
-            else {
-                result = null;
+            SearchHit hit = new SearchHit(cursor.current, Integer.parseInt(docId), publishDate, court, title, docPath);
+            if(this.resultLog != null) {
+                this.resultLog.append(cursor.label, hit);
             }
+            hits.add(hit);
+            cursor.current ++;
+        }
+        if(cursor.writer != null) {
+            cursor.writer.flush();
         }
-        return result;
+        cursor.pageNum += maxPages;
+        return hits;
     }
 
-    public Set<Integer> fetchCitedByDocs(Integer docId,Optional<String> logStmt) throws  Exception{
-        String q =  String.format("citedby:%d",docId);
-        q = makeQuery(q);
-        return saveSearchResults(q,logStmt);
+    void closeSearch(SearchCursor cursor) {
+        if(cursor == null || cursor.writer == null)
+        {
+            return;
+        }
+        try {
+            cursor.writer.close();
+        } catch (IOException e) {
+            ikApiLogger.warning(String.format("Error closing toc for q: %s %s",cursor.q,e.getMessage()));
+        }
+        cursor.writer = null;
     }
-    public boolean downloadDoc(Integer docId, String dataDir) {
-        boolean success = false;
-        boolean orig_needed = this.orig;
-        String[] paths= this.storage.getJsonOrigPath(dataDir,docId);
-        String jsonPath = paths[0];
-        String origPath = paths[1];
 
-        if(!this.storage.exists(jsonPath))
-        {
-            String jsonStr = fetchDoc(docId);
-            JSONObject d;
-            try
+    private String search(String q, int pageNum, Integer maxPages) {
+        String encodedQuery = URLEncoder.encode(q,StandardCharsets.UTF_8);
+        String url = String.format("/search/?formInput=%s&pagenum=%d&maxpages=%d",encodedQuery,pageNum,maxPages);
+        return callApi(url);
+    }
+
+    /**
+     * Planning mode: fetches just the first result page of every query, in
+     * parallel on numWorkers threads, and reports found counts, pages, API
+     * calls and the projected duration of the full run. With overlap, the
+     * share of docids repeated across first pages is used to estimate the
+     * number of unique docs.
+     */
+    public void plan(Iterator<String> queries, boolean overlap) {
+        QueryPlan plan = new QueryPlan(overlap);
+        ExecutorService executor = Executors.newFixedThreadPool(this.numWorkers);
+        Semaphore inFlight = new Semaphore(this.numWorkers * 2);
+        try {
+            while (queries.hasNext())
             {
-                d = new JSONObject(jsonStr);
-            } catch (JSONException e) {
-                ikApiLogger.severe(String.format("Error in getting doc %d %s",docId,e.getMessage()));
-                return success;
+                String q = queries.next();
+                inFlight.acquire();
+                executor.execute(() -> {
+                    try {
+                        planQuery(q, plan);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
             }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ikApiLogger.severe("Interrupted while planning");
+        } finally {
+            executor.shutdownNow();
+        }
+        plan.report(this.numWorkers, this.rate, this.docsCount, this.orig);
+    }
 
-            if(d.has("errmsg"))
+    private void planQuery(String q, QueryPlan plan) {
+        // the response stays reserved until it has been parsed
+        ByteBudget.Scope scope = this.budget.enter();
+        long start = System.nanoTime();
+        String results = search(q, 0, 1);
+        long elapsed = System.nanoTime() - start;
+        try {
+            JSONObject obj = new JSONObject(results);
+            if(obj.has("errmsg"))
             {
-                ikApiLogger.severe(String.format("Error in getting doc %d",docId));
-                return success;
+                ikApiLogger.warning(String.format("Error: %s q: %s",obj.getString("errmsg"),q));
+                plan.addFailed();
+                return;
             }
-
-            ikApiLogger.info(String.format("Saved %s",d.optString("title","untitled")));
-            this.storage.saveJson(jsonStr,jsonPath);
-            success = true;
-
-            if(orig_needed)
+            List<Integer> docIds = new ArrayList<>();
+            if(obj.has("docs"))
             {
-                if(!d.optBoolean("courtcopy",false))
+                JSONArray docs = obj.getJSONArray("docs");
+                for(int i=0;i<docs.length();i++)
                 {
-                    orig_needed = false;
+                    docIds.add(Integer.parseInt(String.valueOf(docs.getJSONObject(i).get("tid"))));
                 }
             }
+            plan.add(q, QueryPlan.parseFound(obj.optString("found", "0")), docIds, elapsed, this.maxPages);
+        } catch (JSONException | NullPointerException | NumberFormatException e) {
+            ikApiLogger.warning(String.format("Error planning q: %s %s", q, e.getMessage()));
+            plan.addFailed();
+        } finally {
+            scope.close();
         }
+    }
 
-        if(orig_needed && !this.storage.existsOriginal(origPath))
+    public Set<Integer> downloadDocType(String docType) throws Exception {
+        String q = String.format("doctypes: %s",docType);
+        if(canSplit())
         {
-            String orig = fetchOrigDoc(docId);
-            if( orig != null &&  this.storage.saveOriginal(orig,origPath))
-            {
-                ikApiLogger.info(String.format("Saved original %d",docId));
-            }
+            return saveSearchResultsSplit(makeQuery(q), q, false);
         }
-        return success;
+        q = makeQuery(q);
+        return saveSearchResults(q,Optional.empty());
     }
 
-    private String fetchOrigDoc(Integer docId) {
-        String url = String.format("/origdoc/%d/",docId);
-        return callApi(url);
+    /**
+     * --split applies to full downloads that are not sharded, and only
+     * with a date sort, as the slices are put back together in date order
+     * and the relevance order of the unsplit query would be lost.
+     */
+    boolean canSplit() {
+        return this.splitSize > 0 && isDateSort(this.sortBy) && !this.docsCount && this.leases == null;
     }
 
-    public String fetchDoc(Integer docId) {
-        String url = String.format("/doc/%d/",docId);
-        List<String> queryParams = new ArrayList<>();
-        if(maxCites>0)
-        {
-            queryParams.add(String.format("maxcites=%d",maxCites));
+    private static boolean isDateSort(String sortBy) {
+        return "mostrecent".equals(sortBy) || "leastrecent".equals(sortBy);
+    }
+
+    /**
+     * Splits one big query into disjoint fromdate/todate slices of at most
+     * splitSize results each and pages through the slices in parallel, so
+     * that a doctype crawl or broad query can use all the workers. Results
+     * are saved under the unsplit query q and its toc.csv is put together
+     * from the slices in the order of the date sort (newest first with
+     * sortby mostrecent); positions are numbered from the found count of
+     * the preceding slices. The probes and all the slices share one
+     * deadline. If a probe fails the slices may not cover every result, so
+     * the query is crawled unsplit instead.
+     *
+     * @param base  the query without date or sort clauses; these are added
+     *              by makeQuery, unless raw is set (a -q query used as is)
+     * @return the doc ids of an unsplit crawl, empty if the query was split
+     */
+    public Set<Integer> saveSearchResultsSplit(String q, String base, boolean raw) {
+        DateTimeFormatter fmt = DateTimeFormatter.ofPattern("dd-MM-yyyy");
+        LocalDate from = this.fromDate == null ? SPLIT_START : ResultLog.parseUserDate(this.fromDate);
+        LocalDate to = this.toDate == null ? LocalDate.now() : ResultLog.parseUserDate(this.toDate);
+        java.util.function.BiFunction<LocalDate,LocalDate,String> sliceQuery = (f, t) -> raw
+                ? String.format("%s fromdate: %s todate: %s sortby: %s", base, f.format(fmt), t.format(fmt), this.sortBy)
+                : makeQuery(base, f.format(fmt), t.format(fmt));
+        Deadline deadline = Deadline.after(this.deadlineMillis);
+
+        ForkJoinPool probes = new ForkJoinPool(this.numWorkers);
+        List<DateSlice> found;
+        try {
+            // the probes run on pool threads, each under the query's deadline
+            found = probes.invoke(new DateRangeSplitter(from, to, this.splitSize,
+                    (f, t) -> Deadline.call(deadline, () -> countFound(sliceQuery.apply(f, t)))));
+        } finally {
+            probes.shutdown();
         }
-        if(maxCitedBy>0)
+        if(found == null)
         {
-            queryParams.add(String.format("maxcitedby=%d",maxCitedBy));
+            ikApiLogger.warning(String.format("Could not count results for q: %s, crawling it unsplit", q));
+            return Deadline.call(deadline, () -> saveSearchResults(q, Optional.empty()));
         }
-        if(!queryParams.isEmpty())
+        List<DateSlice> slices = new ArrayList<>(found);
+        if("mostrecent".equals(this.sortBy))
         {
-            url +=  "?"+String.join("&",queryParams);
+            Collections.reverse(slices);
         }
-        return callApi(url);
-    }
+        ikApiLogger.info(String.format("Split q: %s into %d date slice(s)", q, slices.size()));
 
-    public Set<Integer> saveSearchResults(String q,Optional<String> logStmt) {
-        Set<Integer> uniqueDocs = new HashSet<>();
-        String log = logStmt.orElse("");
+        Path dataDir = null;
+        if (!this.pathBySrc || this.csvOutput)
+        {
+            dataDir = this.storage.getSearchPath(q);
+        }
+        QueryScheduler scheduler = new QueryScheduler(this.numWorkers, this.numWorkers * 2, this.deadlineMillis);
+        List<Path> parts = new ArrayList<>();
         try {
-            Path dataDir = null;
-            Writer handler = null;
-            CSVWriter writer = null;
-            if (!this.docsCount && (!this.pathBySrc || this.csvOutput))
-            {
-                dataDir = this.storage.getSearchPath(q);
-            }
-            if(!this.docsCount && this.csvOutput) {
-                List<Object> result = this.storage.getToCWriter(dataDir);
-
-                handler = (Writer) result.get(0);
-                writer = (CSVWriter) result.get(1);
-            }
-            int pageNum = 0;
-            int current = 1;
-            while (true)
+            long offset = 0;
+            for(int i=0;i<slices.size();i++)
             {
-                String results =  search(q,pageNum,this.maxPages);
-                JSONObject obj = new JSONObject(results);
-                if(obj.has("errmsg"))
-                {
-                    ikApiLogger.warning(String.format("Error: %s, pagenum: %d q: %s",obj.getString("errmsg"),pageNum,q));
-                    break;
-                }
-                if (!obj.has("docs")) {
-                    break;
-                }
-
-                JSONArray docs = obj.getJSONArray("docs");
-                if(docs.isEmpty())
-                {
-                    break;
-                }
-                ikApiLogger.warning(String.format("Num results: %d , pagenum: %d found: %s q: %s", docs.length(), pageNum, obj.getString("found"), q));
-
-                for(int i=0;i<docs.length();i++)
+                DateSlice slice = slices.get(i);
+                SearchCursor cursor = new SearchCursor(sliceQuery.apply(slice.from, slice.to));
+                cursor.label = q;
+                cursor.dataDir = dataDir;
+                cursor.current = (int) offset + 1;
+                if(this.csvOutput)
                 {
-                    JSONObject doc = docs.getJSONObject(i);
-                    String docId = String.valueOf(doc.get("tid"));
-                    String title = doc.getString("title");
-                    String publishDate = doc.getString("publishdate");
-                    String court =  doc.getString("docsource");
-                    if(!this.docsCount && this.csvOutput) {
-                        String[] tocRow = {String.valueOf(current), docId, publishDate, court, title};
-
-                        writer.writeNext(tocRow);
-                    }
-                    Path docPath;
-                    if(!this.docsCount) {
-                        if (pathBySrc) {
-                            docPath = this.storage.getDocPath(court, publishDate);
-                        } else {
-                            docPath = this.storage.getDocpathByPosition(dataDir, current);
-                        }
-
-                        downloadDoc(Integer.parseInt(docId), docPath.toString());
-                    }
-                    uniqueDocs.add(Integer.parseInt(docId));
-                    current ++;
-                }
-                if(!this.docsCount && this.csvOutput) {
-                    handler.flush();
+                    String part = String.format("toc-slice-%d.csv", i);
+                    parts.add(dataDir.resolve(part));
+                    cursor.writer = this.storage.getToCWriter(dataDir, part);
                 }
-                pageNum += maxPages;
+                offset += slice.found;
+                scheduler.admit(q, deadline, job -> {
+                    job.onDone(() -> closeSearch(cursor));
+                    scheduler.submit(job, () -> paginate(scheduler, job, cursor));
+                });
             }
-            if(!this.docsCount && this.csvOutput) {
-                handler.close();
-            }
-            if(this.docsCount)
+            scheduler.awaitIdle();
+            if(this.csvOutput)
             {
-                ikApiLogger.info(String.format("%d document(s) found for query: %s %s",uniqueDocs.size(),q,log));
+                mergeToC(dataDir, parts);
             }
-
-        } catch (Exception e) {
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ikApiLogger.severe("Interrupted while saving split search results");
+        } catch (IOException e) {
             ikApiLogger.severe("Exception while saving search results: " + e.getMessage());
+        } finally {
+            scheduler.shutdown();
         }
-        return uniqueDocs;
+        return Collections.emptySet();
     }
 
-    private String search(String q, int pageNum, Integer maxPages) {
-        String encodedQuery = URLEncoder.encode(q,StandardCharsets.UTF_8);
-        String url = String.format("/search/?formInput=%s&pagenum=%d&maxpages=%d",encodedQuery,pageNum,maxPages);
-        return callApi(url);
+    private void mergeToC(Path dataDir, List<Path> parts) throws IOException {
+        if(parts.isEmpty())
+        {
+            // nothing was found, still leave a toc.csv with just the header
+            this.storage.getToCWriter(dataDir).close();
+            return;
+        }
+        TocWriter.merge(parts, dataDir.resolve("toc.csv"));
+        for(Path part: parts)
+        {
+            Files.deleteIfExists(part);
+        }
     }
 
-    public Set<Integer> downloadDocType(String docType) throws Exception {
-        String q = String.format("doctypes: %s",docType);
-        q = makeQuery(q);
-        return saveSearchResults(q,Optional.empty());
+    /** Number of results the API reports for q, from its first page, or -1 if the call failed. */
+    private long countFound(String q) {
+        // the response stays reserved until it has been parsed
+        ByteBudget.Scope scope = this.budget.enter();
+        try {
+            JSONObject obj = new JSONObject(search(q, 0, 1));
+            if(obj.has("errmsg"))
+            {
+                ikApiLogger.warning(String.format("Error: %s q: %s",obj.getString("errmsg"),q));
+                return -1;
+            }
+            return QueryPlan.parseFound(obj.optString("found", "0"));
+        } catch (JSONException | NullPointerException e) {
+            ikApiLogger.warning(String.format("Error counting q: %s %s", q, e.getMessage()));
+            return -1;
+        } finally {
+            scope.close();
+        }
+    }
+
+    String makeQuery(String q) {
+        return makeQuery(q, this.fromDate, this.toDate);
     }
 
-    private String makeQuery(String q) {
+    String makeQuery(String q, String fromDate, String toDate) {
         StringBuilder qs =new StringBuilder(q);
-        if(this.fromDate != null && !this.fromDate.isEmpty())
+        if(fromDate != null && !fromDate.isEmpty())
         {
-            qs.append(String.format(" fromdate: %s",this.fromDate));
+            qs.append(String.format(" fromdate: %s",fromDate));
         }
-        if(this.toDate != null && !this.toDate.isEmpty())
+        if(toDate != null && !toDate.isEmpty())
         {
-            qs.append(String.format(" todate: %s",this.toDate));
+            qs.append(String.format(" todate: %s",toDate));
         }
         if(this.addedToday)
         {
@@ -647,52 +1826,145 @@ class IKApi
         return qs.toString();
     }
 
-    public void executeTasks(List<String> queries) {
-        ExecutorService executor = Executors.newFixedThreadPool(this.numWorkers);
-        for(int i=0;i<this.numWorkers;i++)
+    /**
+     * Runs all queries on one shared pool. Each query is split into
+     * pagination tasks and per-doc download tasks, and the scheduler hands
+     * them out round robin across queries so that a huge query cannot hold
+     * up the small ones behind it. Queries are pulled from the iterator only
+     * as earlier ones finish, so the qfile is never fully in memory.
+     */
+    public void executeTasks(Iterator<String> queries) {
+        QueryScheduler scheduler = new QueryScheduler(this.numWorkers, this.numWorkers * 2, this.deadlineMillis);
+        Deque<String> heldElsewhere = new ArrayDeque<>();
+        try
         {
-            executor.submit(this::worker);
+            while (queries.hasNext())
+            {
+                String q = makeQuery(queries.next());
+                if(claimQuery(q, heldElsewhere))
+                {
+                    scheduler.admit(q, job -> startQuery(scheduler, job));
+                }
+            }
+            // with --shard, wait for queries leased by other nodes to finish or for their leases to expire
+            while (!heldElsewhere.isEmpty())
+            {
+                Thread.sleep(this.leases.retryInterval());
+                for(int i = heldElsewhere.size(); i > 0; i--)
+                {
+                    String q = heldElsewhere.poll();
+                    if(claimQuery(q, heldElsewhere))
+                    {
+                        scheduler.admit(q, job -> startQuery(scheduler, job));
+                    }
+                }
+            }
+            scheduler.awaitIdle();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ikApiLogger.severe("Thread interrupted while waiting for termination.");
+        } finally {
+            scheduler.shutdown();
         }
+    }
 
-        for(String query: queries)
+    /**
+     * Without --shard every query is ours. With it, claims the query's lease
+     * and remembers it in heldElsewhere if another live node holds it.
+     */
+    private boolean claimQuery(String q, Deque<String> heldElsewhere) {
+        if(this.leases == null)
         {
-            this.queue.add(makeQuery(query));
+            return true;
         }
-        for(int i=0;i<this.numWorkers;i++)
-        {
-            queue.add("__POISON__");
+        String unit = LeaseManager.unitId("q", q);
+        try {
+            if(this.leases.tryClaim(unit))
+            {
+                return true;
+            }
+            if(!this.leases.isDone(unit))
+            {
+                heldElsewhere.add(q);
+            }
+        } catch (IOException e) {
+            ikApiLogger.severe(String.format("Error claiming q: %s %s", q, e.getMessage()));
         }
+        return false;
+    }
 
-        executor.shutdown();
-        try
+    private void startQuery(QueryScheduler scheduler, QueryJob job) {
+        ikApiLogger.info("Processing " + job.q);
+        SearchCursor cursor;
+        try {
+            cursor = openSearch(job.q);
+        } catch (IOException e) {
+            ikApiLogger.severe("Exception while saving search results: " + e.getMessage());
+            return;
+        }
+        job.onDone(() -> {
+            closeSearch(cursor);
+            if(this.leases != null)
+            {
+                String unit = LeaseManager.unitId("q", job.q);
+                if(!cursor.exhausted)
+                {
+                    // stopped on an error or the deadline: leave it to be retried
+                    ikApiLogger.warning(String.format("Pagination of q: %s did not finish, releasing it", job.q));
+                    this.leases.release(unit);
+                } else {
+                    try {
+                        this.leases.complete(unit);
+                    } catch (IOException e) {
+                        ikApiLogger.warning(String.format("Error completing q: %s %s", job.q, e.getMessage()));
+                    }
+                }
+            }
+            ikApiLogger.info("Done with query " + job.q);
+        });
+        scheduler.submit(job, () -> paginate(scheduler, job, cursor));
+    }
+
+    private void paginate(QueryScheduler scheduler, QueryJob job, SearchCursor cursor) {
+        List<SearchHit> hits;
+        try {
+            hits = nextPage(cursor);
+        } catch (Exception e) {
+            ikApiLogger.severe("Exception while saving search results: " + e.getMessage());
+            return;
+        }
+        if(hits == null)
+        {
+            return;
+        }
+        if(!this.docsCount)
         {
-            if(!executor.awaitTermination(Long.MAX_VALUE,TimeUnit.SECONDS))
+            for(SearchHit hit: hits)
             {
-                ikApiLogger.warning("Executor did not terminate cleanly.");
+                scheduler.submit(job, () -> downloadDoc(hit.docId, hit.docPath.toString()));
             }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            ikApiLogger.severe("Thread interrupted while waiting for termination.");
         }
+        scheduler.submit(job, () -> paginate(scheduler, job, cursor));
+    }
+}
+
+/**
+ * Jsoup is only needed for -r (next level of citedby). Keeping it behind this
+ * holder means the shaded jsoup classes are never loaded on any other path.
+ */
+class CitationLinks
+{
+    private CitationLinks() {
     }
 
-    private void worker() {
-          try {
-              while (true) {
-                  String q = this.queue.take();
-                  if ("__POISON__".equals(q)) {
-                      break;
-                  }
-                  ikApiLogger.info("Processing " + q);
-                  saveSearchResults(q,Optional.empty());
-                  ikApiLogger.info("Done with query " + q);
-              }
-          }
-          catch (InterruptedException ie)
-          {
-              Thread.currentThread().interrupt();
-              ikApiLogger.severe("Worker thread interrupted while waiting for a task: " + ie.getMessage());
-          }
+    static List<String> extractHrefs(String htmlContent) {
+        List<String> hrefs = new ArrayList<>();
+        org.jsoup.nodes.Document doc = org.jsoup.Jsoup.parse(htmlContent);
+        for(org.jsoup.nodes.Element link: doc.select("section span.akn-num > a[href^=/doc/]"))
+        {
+            hrefs.add(link.attr("href"));
+        }
+        return hrefs;
     }
 }
 
@@ -851,16 +2123,79 @@ public class IKApiMain {
         String logLevel = ns.getString("loglevel");
         String logFile = ns.getString("logfile");
         String qFile = ns.getString("qfile");
+        String fragFile = ns.getString("fragfile");
         Boolean level = ns.getBoolean("level");
         List<Integer> citedByDocId  = ns.getList("citedby");
 
         setUpLogging(logLevel,logFile);
 
         FileStorage fileStorage = new FileStorage(dataDir);
+
+        if (ns.getBoolean("lookup")) {
+            LocalDate from = ns.getString("fromdate") == null ? null : ResultLog.parseUserDate(ns.getString("fromdate"));
+            LocalDate to = ns.getString("todate") == null ? null : ResultLog.parseUserDate(ns.getString("todate"));
+            int n = ResultLog.lookup(fileStorage.getResultLogPath(), docId, ns.getString("court"), from, to, System.out);
+            ikApiLogger.info(String.format("%d hit(s) in result log", n));
+            return;
+        }
+        if (ns.getBoolean("verify")) {
+            CorpusVerifier.verify(Paths.get(dataDir), ns.getInt("numworkers"), ns.getBoolean("orig"), fileStorage.getRepairListPath());
+            return;
+        }
+        if (ns.getBoolean("buildindex")) {
+            long start = System.currentTimeMillis();
+            int n = LocalIndex.build(Paths.get(dataDir), fileStorage.getLocalIndexPath());
+            ikApiLogger.info(String.format("Indexed %d doc(s) in %d ms", n, System.currentTimeMillis() - start));
+            return;
+        }
+        if (ns.getString("localsearch") != null) {
+            long start = System.currentTimeMillis();
+            int n = LocalIndex.search(fileStorage.getLocalIndexPath(), ns.getString("localsearch"), System.out);
+            ikApiLogger.info(String.format("%d doc(s) found locally in %d ms", n, System.currentTimeMillis() - start));
+            return;
+        }
+        if (ns.getString("token") == null && ns.getString("tokenfile") == null) {
+            ikApiLogger.severe("argument -s/--sharedtoken or --token-file is required");
+            return;
+        }
+        if (ns.getBoolean("resultlog") && ns.getBoolean("shard")) {
+            // the result log's dictionary ids and appends are only coordinated within one process
+            ikApiLogger.severe("argument -R/--resultlog cannot be used with --shard");
+            return;
+        }
+
         IKApi ikapi = new IKApi(ns, fileStorage);
 
 
-        if ( docId != null && query != null && !query.isEmpty()) {
+        if (ns.getBoolean("plan")) {
+            if (query != null && !query.isEmpty()) {
+                ikapi.plan(List.of(addedToday ? query + " added:today" : query).iterator(), ns.getBoolean("planoverlap"));
+            }
+            else if (docType != null && !docType.isEmpty()) {
+                ikapi.plan(List.of(ikapi.makeQuery(String.format("doctypes: %s",docType))).iterator(), ns.getBoolean("planoverlap"));
+            }
+            else if (qFile != null && !qFile.isEmpty()) {
+                try (QueryFile queries = new QueryFile(Paths.get(qFile))) {
+                    Iterator<String> made = new Iterator<String>() {
+                        @Override
+                        public boolean hasNext() { return queries.hasNext(); }
+                        @Override
+                        public String next() { return ikapi.makeQuery(queries.next()); }
+                    };
+                    ikapi.plan(made, ns.getBoolean("planoverlap"));
+                }
+            }
+            else {
+                ikApiLogger.severe("--plan needs -q, -Q or -c");
+            }
+        }
+        else if (ns.getBoolean("repair")) {
+            ikapi.repair(fileStorage.getRepairListPath());
+        }
+        else if (fragFile != null && !fragFile.isEmpty()) {
+            ikapi.saveDocFragments(Paths.get(fragFile));
+        }
+        else if ( docId != null && query != null && !query.isEmpty()) {
             ikApiLogger.warning(String.format("Docfragment for %d q: %s", docId, query));
             ikapi.saveDocFragment(docId, query);
         }
@@ -875,25 +2210,22 @@ public class IKApiMain {
                 q.append(" added:today");
             }
             ikApiLogger.warning(String.format("Search q: %s",q));
-            ikapi.saveSearchResults(q.toString(),Optional.empty());
+            if (ikapi.canSplit() && !Pattern.compile("(fromdate|todate|sortby)\\s*:").matcher(query).find()) {
+                ikapi.saveSearchResultsSplit(q.toString(), q.toString(), true);
+            }
+            else {
+                ikapi.saveSearchResults(q.toString(),Optional.empty());
+            }
         }
         else if (docType != null && !docType.isEmpty()) {
             ikapi.downloadDocType(docType);
         }
         else if (qFile != null && !qFile.isEmpty()) {
-            List<String> queries = new ArrayList<>();
-
-            Path filePath = Paths.get(qFile);
-
-            try (BufferedReader reader = Files.newBufferedReader(filePath, StandardCharsets.UTF_8)) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    queries.add(line.trim());
-                }
-            } catch (IOException e) {
+            try (QueryFile queries = new QueryFile(Paths.get(qFile))) {
+                ikapi.executeTasks(queries);
+            } catch (IOException | UncheckedIOException e) {
                 ikApiLogger.severe(e.getMessage());
             }
-            ikapi.executeTasks(queries);
         }
         else if (citedByDocId != null && !citedByDocId.isEmpty())
         {
@@ -928,6 +2260,7 @@ public class IKApiMain {
                  }
              }
             } 
+        ikapi.close();
         }
 
         catch(Exception e)
@@ -946,11 +2279,8 @@ public class IKApiMain {
             String htmlContent = document.getString("doc");
             if(htmlContent != null && !htmlContent.isEmpty())
             {
-                Document doc = Jsoup.parse(htmlContent);
-                Elements links = doc.select("section span.akn-num > a[href^=/doc/]");
-                for(Element link: links)
+                for(String href: CitationLinks.extractHrefs(htmlContent))
                 {
-                    String href = link.attr("href");
                     Integer doc_Id = extractDocIdFromHref(href);
                     if(doc_Id != null && !uniqueDocsToProcess.contains(doc_Id))
                     {
@@ -0,0 +1,34 @@
+package org.indiankanoon;
+
+import java.io.*;
+import java.nio.file.*;
+
+/** Sequential reader of one LocalIndex segment file, used by the merge. */
+class IndexSegmentReader implements Closeable
+{
+    final DataInputStream in;
+    final int n;
+    String term;
+    int df;
+
+    IndexSegmentReader(Path segment, int n) throws IOException
+    {
+        this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment)));
+        this.n = n;
+    }
+
+    boolean next() throws IOException {
+        try {
+            term = in.readUTF();
+        } catch (EOFException e) {
+            return false;
+        }
+        df = in.readInt();
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
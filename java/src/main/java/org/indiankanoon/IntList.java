@@ -0,0 +1,18 @@
+package org.indiankanoon;
+
+import java.util.*;
+
+/** Growable int array for in-memory postings. */
+class IntList
+{
+    int[] values = new int[4];
+    int size = 0;
+
+    void add(int v) {
+        if(size == values.length)
+        {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = v;
+    }
+}
@@ -0,0 +1,42 @@
+package org.indiankanoon;
+
+import java.util.*;
+
+/**
+ * Latencies of the most recent successful API calls to each kind of
+ * endpoint ("search", "doc", ...), used to pick the delay after which a
+ * hedged request is sent. A search and a doc fetch take very different
+ * times, so each kind has its own window.
+ */
+public class LatencyTracker
+{
+    private static final int WINDOW = 512;
+    private static final int MIN_SAMPLES = 20;
+
+    private static final class Window
+    {
+        final long[] samples = new long[WINDOW];
+        int count = 0;
+    }
+
+    private final Map<String, Window> windows = new HashMap<>();
+
+    public synchronized void record(String kind, long millis) {
+        Window w = windows.computeIfAbsent(kind, k -> new Window());
+        w.samples[w.count % WINDOW] = millis;
+        w.count++;
+    }
+
+    /** The 95th percentile for kind, or -1 until enough of its calls have been seen. */
+    public synchronized long p95(String kind) {
+        Window w = windows.get(kind);
+        int n = w == null ? 0 : Math.min(w.count, WINDOW);
+        if(n < MIN_SAMPLES)
+        {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(w.samples, n);
+        Arrays.sort(sorted);
+        return sorted[(int) (n * 0.95)];
+    }
+}
@@ -0,0 +1,232 @@
+package org.indiankanoon;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+import java.util.logging.*;
+import java.io.*;
+import java.util.*;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * Coordinates several IKApiMain processes sharing one datadir (e.g. over
+ * NFS). A unit of work (a query, a page range of a query or a doc) is
+ * claimed by exclusively creating DATADIR/leases/UNIT.lease holding a token
+ * unique to the claim; a heartbeat keeps the lease mtime fresh and a lease
+ * not renewed within the ttl is treated as abandoned by a crashed node and
+ * may be reclaimed. Finished units get a UNIT.done marker under
+ * DATADIR/leases/RUNID, so a new run id starts the work over while the same
+ * one resumes it. Node clocks are assumed to be in sync.
+ */
+public class LeaseManager implements Closeable
+{
+    private static final Logger leaseLogger = Logger.getLogger("lease");
+    private static final java.security.SecureRandom nonces = new java.security.SecureRandom();
+
+    private final Path dir;
+    private final Path runDir;
+    private final String nodeId;
+    private final long ttlMillis;
+    /** unit -> token written into its lease file */
+    private final Map<String,String> held = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService heartbeat;
+
+    public LeaseManager(Path dir, String runId, String nodeId, long ttlMillis) throws IOException
+    {
+        this.dir = dir;
+        this.runDir = dir.resolve(runId);
+        this.nodeId = nodeId;
+        this.ttlMillis = ttlMillis;
+        Files.createDirectories(runDir);
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ikapi-lease-heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1000, ttlMillis / 3);
+        this.heartbeat.scheduleAtFixedRate(this::renew, period, period, TimeUnit.MILLISECONDS);
+        leaseLogger.info(String.format("Node %s sharing work of run %s through %s", nodeId, runId, dir));
+    }
+
+    public static String defaultNodeId() {
+        String host;
+        try {
+            host = java.net.InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            host = "node";
+        }
+        return host + "-" + ProcessHandle.current().pid();
+    }
+
+    public static String unitId(String kind, String key) {
+        return kind + "-" + Long.toHexString(QueryFile.hash64(key));
+    }
+
+    public long retryInterval() {
+        return Math.max(1000, ttlMillis / 10);
+    }
+
+    public boolean isDone(String unit) {
+        return Files.exists(runDir.resolve(unit + ".done"));
+    }
+
+    /** Whether this node still holds the lease of the unit. */
+    public boolean holds(String unit) {
+        return held.containsKey(unit);
+    }
+
+    /** Claims a unit unless it is finished or leased by a live node. */
+    public boolean tryClaim(String unit) throws IOException {
+        if(isDone(unit) || !tryLock(unit))
+        {
+            return false;
+        }
+        // it may have been finished between the check and the claim
+        if(isDone(unit))
+        {
+            release(unit);
+            return false;
+        }
+        return true;
+    }
+
+    public boolean tryLock(String unit) throws IOException {
+        Path lease = dir.resolve(unit + ".lease");
+        String token = String.format("%s %016x", nodeId, nonces.nextLong());
+        for(int attempt=0;attempt<2;attempt++)
+        {
+            try {
+                Files.write(lease, token.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                held.put(unit, token);
+                return true;
+            } catch (FileAlreadyExistsException e) {
+                if(!reclaimIfExpired(lease))
+                {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String readToken(Path lease) throws IOException {
+        return new String(Files.readAllBytes(lease), StandardCharsets.UTF_8);
+    }
+
+    private boolean reclaimIfExpired(Path lease) throws IOException {
+        long modified;
+        String token;
+        try {
+            modified = Files.getLastModifiedTime(lease).toMillis();
+            token = readToken(lease);
+        } catch (NoSuchFileException e) {
+            return true;
+        }
+        if(System.currentTimeMillis() - modified < ttlMillis)
+        {
+            return false;
+        }
+        // only one node can move the stale lease out of the way
+        Path stale = dir.resolve(String.format("%s.%s.%d.expired", lease.getFileName(), nodeId, System.nanoTime()));
+        try {
+            Files.move(lease, stale, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            return true;
+        }
+        // between the check and the move the lease may have been renewed, or
+        // released and claimed afresh by another node; if what was moved is
+        // not the expired lease seen above, put it back
+        if(!token.equals(readToken(stale)) || Files.getLastModifiedTime(stale).toMillis() != modified)
+        {
+            try {
+                Files.createLink(lease, stale);
+            } catch (FileAlreadyExistsException e) {
+                leaseLogger.warning(String.format("Lease %s was claimed again while being restored", lease.getFileName()));
+            }
+            Files.deleteIfExists(stale);
+            return false;
+        }
+        Files.deleteIfExists(stale);
+        leaseLogger.warning(String.format("Reclaimed expired lease %s of %s", lease.getFileName(), token));
+        return true;
+    }
+
+    public void complete(String unit) throws IOException {
+        Files.write(runDir.resolve(unit + ".done"), nodeId.getBytes(StandardCharsets.UTF_8));
+        release(unit);
+    }
+
+    public void release(String unit) {
+        String token = held.remove(unit);
+        if(token == null)
+        {
+            return;
+        }
+        Path lease = dir.resolve(unit + ".lease");
+        try {
+            // the lease may have been reclaimed while we were unresponsive
+            if(token.equals(readToken(lease)))
+            {
+                Files.deleteIfExists(lease);
+            }
+        } catch (NoSuchFileException e) {
+            // already gone
+        } catch (IOException e) {
+            leaseLogger.warning(String.format("Error releasing lease %s %s", unit, e.getMessage()));
+        }
+    }
+
+    /** Records that results of the query end at or before pageNum. */
+    public void markEnd(String q, int pageNum) throws IOException {
+        if(pageNum >= getEnd(q))
+        {
+            return;
+        }
+        Path end = runDir.resolve(unitId("p", q) + ".end");
+        Path tmp = runDir.resolve(String.format("%s.%s.tmp", end.getFileName(), nodeId));
+        Files.write(tmp, String.valueOf(pageNum).getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, end, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Page number at which results of the query end, or MAX_VALUE if unknown yet. */
+    public int getEnd(String q) {
+        Path end = runDir.resolve(unitId("p", q) + ".end");
+        try {
+            return Integer.parseInt(new String(Files.readAllBytes(end), StandardCharsets.UTF_8).trim());
+        } catch (IOException | NumberFormatException e) {
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    public void renew() {
+        FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+        for(Map.Entry<String,String> e: held.entrySet())
+        {
+            String unit = e.getKey();
+            Path lease = dir.resolve(unit + ".lease");
+            try {
+                if(!e.getValue().equals(readToken(lease)))
+                {
+                    leaseLogger.warning(String.format("Lost lease %s to another node", unit));
+                    held.remove(unit, e.getValue());
+                    continue;
+                }
+                Files.setLastModifiedTime(lease, now);
+            } catch (NoSuchFileException ex) {
+                leaseLogger.warning(String.format("Lost lease %s to another node", unit));
+                held.remove(unit, e.getValue());
+            } catch (IOException ex) {
+                leaseLogger.warning(String.format("Error renewing lease %s %s", unit, ex.getMessage()));
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        heartbeat.shutdownNow();
+        for(String unit: held.keySet())
+        {
+            release(unit);
+        }
+    }
+}
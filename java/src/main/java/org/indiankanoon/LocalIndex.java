@@ -0,0 +1,485 @@
+package org.indiankanoon;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.logging.*;
+import java.io.*;
+import java.util.*;
+import java.nio.file.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Offline inverted index over the doc json already downloaded into a
+ * datadir, kept in DATADIR/localindex:
+ *
+ *   docs.bin     fixed width records per indexed doc (docid, publish date as
+ *                epoch day, court id, offset of "title TAB path" in meta.bin)
+ *   courts.txt   court (docsource) dictionary
+ *   terms.bin    length prefixed UTF-8 terms, in sorted order
+ *   lexicon.bin  per term: offset in terms.bin, offset in postings.bin, df
+ *   postings.bin doc numbers per term, delta and varint encoded
+ *
+ * Terms come from the title, the docsource and the text of the doc html.
+ * The index is built in segments that are merged at the end, so memory
+ * stays bounded on large corpora.
+ */
+public class LocalIndex
+{
+    private static final Logger indexLogger = Logger.getLogger("localindex");
+
+    private static final int DOC_SIZE = 20;
+    private static final int LEX_SIZE = 20;
+    private static final long SEGMENT_POSTINGS = 20_000_000L;
+    /** longest entity name, e.g. CounterClockwiseContourIntegral */
+    private static final int MAX_ENTITY = 32;
+    private static final Pattern DOC_FILE = Pattern.compile("\\d+\\.json");
+    private static final Pattern OPERATOR = Pattern.compile("(doctypes|fromdate|todate)\\s*:\\s*(\\S+)");
+
+    private LocalIndex() {
+    }
+
+    /** Indexes every doc json under datadir into indexDir, replacing any earlier index. */
+    public static int build(Path datadir, Path indexDir) throws IOException {
+        Files.createDirectories(indexDir);
+        for(String name: new String[]{"courts.txt", "docs.bin", "meta.bin"})
+        {
+            Files.deleteIfExists(indexDir.resolve(name));
+        }
+        Set<Integer> seen = new HashSet<>();
+        List<Path> segments = new ArrayList<>();
+        TreeMap<String, IntList> postings = new TreeMap<>();
+        long postingCount = 0;
+        int docNum = 0;
+
+        try(StringDictionary courts = new StringDictionary(indexDir.resolve("courts.txt"), true);
+            DataOutputStream docs = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(indexDir.resolve("docs.bin"))));
+            DataOutputStream meta = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(indexDir.resolve("meta.bin"))));
+            java.util.stream.Stream<Path> files = Files.walk(datadir))
+        {
+            long metaOffset = 0;
+            Iterator<Path> it = files.filter(f -> isDocFile(datadir.relativize(f))).iterator();
+            while (it.hasNext())
+            {
+                Path file = it.next();
+                JSONObject d;
+                try {
+                    d = new JSONObject(Files.readString(file, StandardCharsets.UTF_8));
+                } catch (IOException | JSONException e) {
+                    indexLogger.warning(String.format("Skipping unreadable doc %s %s", file, e.getMessage()));
+                    continue;
+                }
+                String name = file.getFileName().toString();
+                int docId = d.optInt("tid", Integer.parseInt(name.substring(0, name.length() - 5)));
+                if(d.has("errmsg") || !seen.add(docId))
+                {
+                    continue;
+                }
+                String title = d.optString("title", "");
+                String court = d.optString("docsource", "");
+
+                Set<String> terms = new HashSet<>();
+                tokenise(title, terms);
+                tokenise(court, terms);
+                tokenise(d.optString("doc", ""), terms);
+                for(String term: terms)
+                {
+                    postings.computeIfAbsent(term, t -> new IntList()).add(docNum);
+                }
+                postingCount += terms.size();
+
+                byte[] m = (title.replace('\t', ' ') + "\t" + file).getBytes(StandardCharsets.UTF_8);
+                docs.writeInt(docId);
+                docs.writeInt(ResultLog.toEpochDay(d.optString("publishdate", "")));
+                docs.writeInt(courts.getId(court));
+                docs.writeLong(metaOffset);
+                meta.writeInt(m.length);
+                meta.write(m);
+                metaOffset += 4 + m.length;
+                docNum++;
+
+                if(postingCount >= SEGMENT_POSTINGS)
+                {
+                    segments.add(writeSegment(indexDir, segments.size(), postings));
+                    postings.clear();
+                    postingCount = 0;
+                }
+            }
+        }
+        segments.add(writeSegment(indexDir, segments.size(), postings));
+        merge(indexDir, segments);
+        for(Path segment: segments)
+        {
+            Files.deleteIfExists(segment);
+        }
+        return docNum;
+    }
+
+    private static boolean isDocFile(Path file) {
+        if(!DOC_FILE.matcher(file.getFileName().toString()).matches())
+        {
+            return false;
+        }
+        for(Path part: file)
+        {
+            if(FileStorage.INTERNAL_DIRS.contains(part.toString()))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Adds the lowercased words of text, skipping html tags and entities. */
+    public static void tokenise(String text, Set<String> terms) {
+        StringBuilder token = new StringBuilder();
+        boolean inTag = false;
+        for(int i=0;i<text.length();i++)
+        {
+            char c = text.charAt(i);
+            if(inTag)
+            {
+                inTag = c != '>';
+                continue;
+            }
+            if(Character.isLetterOrDigit(c))
+            {
+                token.append(Character.toLowerCase(c));
+                continue;
+            }
+            addToken(token, terms);
+            if(c == '<')
+            {
+                inTag = true;
+            } else if(c == '&')
+            {
+                i = entityEnd(text, i);
+            }
+        }
+        addToken(token, terms);
+    }
+
+    /**
+     * Returns the index of the ';' closing an entity such as &amp;amp; or
+     * &amp;#8217; that starts at i, or i itself when the '&amp;' is just text
+     * as in "AT&amp;T".
+     */
+    private static int entityEnd(String text, int i) {
+        int limit = Math.min(text.length(), i + MAX_ENTITY + 2);
+        for(int j=i+1;j<limit;j++)
+        {
+            char c = text.charAt(j);
+            if(c == ';')
+            {
+                return j > i + 1 ? j : i;
+            }
+            if(!Character.isLetterOrDigit(c) && c != '#')
+            {
+                return i;
+            }
+        }
+        return i;
+    }
+
+    private static void addToken(StringBuilder token, Set<String> terms) {
+        if(token.length() > 1 && token.length() <= 64)
+        {
+            terms.add(token.toString());
+        }
+        token.setLength(0);
+    }
+
+    private static Path writeSegment(Path indexDir, int n, SortedMap<String, IntList> postings) throws IOException {
+        Path segment = indexDir.resolve(String.format("seg-%d.tmp", n));
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(segment))))
+        {
+            for(Map.Entry<String, IntList> e: postings.entrySet())
+            {
+                IntList docs = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeInt(docs.size);
+                for(int i=0;i<docs.size;i++)
+                {
+                    out.writeInt(docs.values[i]);
+                }
+            }
+        }
+        return segment;
+    }
+
+    /** Merges the segments; doc numbers grow with the segment number. */
+    private static void merge(Path indexDir, List<Path> segments) throws IOException {
+        PriorityQueue<IndexSegmentReader> heads = new PriorityQueue<>(
+                Comparator.comparing((IndexSegmentReader r) -> r.term).thenComparingInt(r -> r.n));
+        for(int i=0;i<segments.size();i++)
+        {
+            IndexSegmentReader r = new IndexSegmentReader(segments.get(i), i);
+            if(r.next())
+            {
+                heads.add(r);
+            } else {
+                r.close();
+            }
+        }
+        try(DataOutputStream terms = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(indexDir.resolve("terms.bin"))));
+            DataOutputStream lexicon = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(indexDir.resolve("lexicon.bin"))));
+            OutputStream postings = new BufferedOutputStream(Files.newOutputStream(indexDir.resolve("postings.bin"))))
+        {
+            long termOffset = 0;
+            long postingOffset = 0;
+            while (!heads.isEmpty())
+            {
+                String term = heads.peek().term;
+                int df = 0;
+                int last = 0;
+                long start = postingOffset;
+                while (!heads.isEmpty() && heads.peek().term.equals(term))
+                {
+                    IndexSegmentReader r = heads.poll();
+                    for(int i=0;i<r.df;i++)
+                    {
+                        int doc = r.in.readInt();
+                        postingOffset += writeVarint(postings, doc - last);
+                        last = doc;
+                    }
+                    df += r.df;
+                    if(r.next())
+                    {
+                        heads.add(r);
+                    } else {
+                        r.close();
+                    }
+                }
+                byte[] t = term.getBytes(StandardCharsets.UTF_8);
+                terms.writeShort(t.length);
+                terms.write(t);
+                lexicon.writeLong(termOffset);
+                lexicon.writeLong(start);
+                lexicon.writeInt(df);
+                termOffset += 2 + t.length;
+            }
+        }
+    }
+
+    /** Writes v in 7 bit groups, low group first; returns the bytes written. */
+    public static int writeVarint(OutputStream out, int v) throws IOException {
+        int n = 1;
+        while ((v & ~0x7f) != 0)
+        {
+            out.write((v & 0x7f) | 0x80);
+            v >>>= 7;
+            n++;
+        }
+        out.write(v);
+        return n;
+    }
+
+    /**
+     * Runs q against the index and prints matching docs as tab separated
+     * lines: docid, date, court, title, path. Supports plain terms (all
+     * must match), "doctypes: a,b" (matched against the docsource, e.g.
+     * supremecourt against "Supreme Court of India") and "fromdate:" /
+     * "todate:" in DD-MM-YYYY. Returns the number of docs printed.
+     */
+    public static int search(Path indexDir, String q, PrintStream out) throws IOException {
+        List<String> doctypes = new ArrayList<>();
+        int from = Integer.MIN_VALUE;
+        int to = Integer.MAX_VALUE;
+        Matcher m = OPERATOR.matcher(q);
+        StringBuilder rest = new StringBuilder();
+        int pos = 0;
+        while (m.find())
+        {
+            rest.append(q, pos, m.start()).append(' ');
+            pos = m.end();
+            switch (m.group(1))
+            {
+                case "doctypes":
+                    for(String t: m.group(2).split(","))
+                    {
+                        doctypes.add(t.toLowerCase().replaceAll("[^\\p{L}\\p{N}]", ""));
+                    }
+                    break;
+                case "fromdate":
+                    from = (int) ResultLog.parseUserDate(m.group(2)).toEpochDay();
+                    break;
+                default:
+                    to = (int) ResultLog.parseUserDate(m.group(2)).toEpochDay();
+            }
+        }
+        rest.append(q.substring(pos));
+        Set<String> terms = new LinkedHashSet<>();
+        tokenise(rest.toString(), terms);
+
+        ByteBuffer docs = mapAll(indexDir.resolve("docs.bin"));
+        int numDocs = docs.limit() / DOC_SIZE;
+        StringDictionary courts = new StringDictionary(indexDir.resolve("courts.txt"), false);
+        int printed = 0;
+        try(FileChannel postings = FileChannel.open(indexDir.resolve("postings.bin"), StandardOpenOption.READ);
+            FileChannel meta = FileChannel.open(indexDir.resolve("meta.bin"), StandardOpenOption.READ))
+        {
+            int[] matches = terms.isEmpty() ? null : lookupAll(indexDir, postings, terms);
+            int count = matches == null ? numDocs : matches.length;
+            for(int i=0;i<count;i++)
+            {
+                int base = (matches == null ? i : matches[i]) * DOC_SIZE;
+                int date = docs.getInt(base + 4);
+                if((from != Integer.MIN_VALUE || to != Integer.MAX_VALUE)
+                        && (date == ResultLog.NO_DATE || date < from || date > to))
+                {
+                    continue;
+                }
+                String court = courts.getValue(docs.getInt(base + 8));
+                if(!doctypes.isEmpty() && !matchesDoctype(court, doctypes))
+                {
+                    continue;
+                }
+                out.println(String.join("\t",
+                        String.valueOf(docs.getInt(base)),
+                        date == ResultLog.NO_DATE ? "" : LocalDate.ofEpochDay(date).toString(),
+                        court,
+                        readMeta(meta, docs.getLong(base + 12))));
+                printed++;
+            }
+        }
+        return printed;
+    }
+
+    private static boolean matchesDoctype(String court, List<String> doctypes) {
+        String c = court.toLowerCase().replaceAll("[^\\p{L}\\p{N}]", "");
+        for(String t: doctypes)
+        {
+            if(c.contains(t))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Intersects the postings of all terms, rarest first. */
+    private static int[] lookupAll(Path indexDir, FileChannel postings, Set<String> terms) throws IOException {
+        ByteBuffer lexicon = mapAll(indexDir.resolve("lexicon.bin"));
+        ByteBuffer termBytes = mapAll(indexDir.resolve("terms.bin"));
+        int numTerms = lexicon.limit() / LEX_SIZE;
+        List<int[]> lists = new ArrayList<>();
+        for(String term: terms)
+        {
+            int i = findTerm(lexicon, termBytes, numTerms, term);
+            if(i < 0)
+            {
+                return new int[0];
+            }
+            long start = lexicon.getLong(i * LEX_SIZE + 8);
+            long end = i + 1 < numTerms ? lexicon.getLong((i + 1) * LEX_SIZE + 8) : postings.size();
+            lists.add(readPostings(postings, start, end, lexicon.getInt(i * LEX_SIZE + 16)));
+        }
+        lists.sort(Comparator.comparingInt(l -> l.length));
+        int[] result = lists.get(0);
+        for(int k=1;k<lists.size() && result.length > 0;k++)
+        {
+            result = intersect(result, lists.get(k));
+        }
+        return result;
+    }
+
+    private static int findTerm(ByteBuffer lexicon, ByteBuffer termBytes, int numTerms, String term) {
+        int lo = 0;
+        int hi = numTerms - 1;
+        while (lo <= hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            int off = (int) lexicon.getLong(mid * LEX_SIZE);
+            byte[] b = new byte[termBytes.getShort(off)];
+            termBytes.get(off + 2, b);
+            int cmp = new String(b, StandardCharsets.UTF_8).compareTo(term);
+            if(cmp == 0)
+            {
+                return mid;
+            }
+            if(cmp < 0)
+            {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return -1;
+    }
+
+    private static int[] readPostings(FileChannel postings, long start, long end, int df) throws IOException {
+        ByteBuffer buf = readFully(postings, start, (int) (end - start));
+        int[] docs = new int[df];
+        int last = 0;
+        for(int i=0;i<df;i++)
+        {
+            last += readVarint(buf);
+            docs[i] = last;
+        }
+        return docs;
+    }
+
+    public static int readVarint(ByteBuffer buf) {
+        int v = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buf.get();
+            v |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return v;
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] out = new int[Math.min(a.length, b.length)];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length)
+        {
+            if(a[i] < b[j])
+            {
+                i++;
+            } else if(a[i] > b[j])
+            {
+                j++;
+            } else {
+                out[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private static String readMeta(FileChannel meta, long offset) throws IOException {
+        int len = readFully(meta, offset, 4).getInt();
+        ByteBuffer b = readFully(meta, offset + 4, len);
+        return new String(b.array(), 0, b.limit(), StandardCharsets.UTF_8);
+    }
+
+    private static ByteBuffer readFully(FileChannel ch, long offset, int len) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(len);
+        while (buf.hasRemaining())
+        {
+            if(ch.read(buf, offset + buf.position()) < 0)
+            {
+                throw new EOFException("Local index is truncated");
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private static ByteBuffer mapAll(Path file) throws IOException {
+        try(FileChannel ch = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            return ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.indiankanoon;
+
+/**
+ * Map from primitive longs to non-negative longs with open addressing.
+ * The table is kept at most half full, so an entry costs 32 to 64 bytes
+ * instead of the ~120 of a boxed HashMap<Long,Long>.
+ */
+public class LongLongMap
+{
+    /** Returned for a key that is not in the map. */
+    public static final long NONE = -1L;
+    private static final long EMPTY = 0L;
+
+    private long[] keys;
+    private long[] values;
+    private long zeroValue = NONE;
+    private int size = 0;
+
+    public LongLongMap()
+    {
+        this(1024);
+    }
+
+    public LongLongMap(int expected)
+    {
+        int capacity = Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1;
+        this.keys = new long[capacity];
+        this.values = new long[capacity];
+    }
+
+    /**
+     * Maps key to value unless it is mapped already; returns the value
+     * it was mapped to, or NONE if value was added.
+     */
+    public long putIfAbsent(long key, long value) {
+        if(value < 0)
+        {
+            throw new IllegalArgumentException("negative value " + value);
+        }
+        if(key == EMPTY)
+        {
+            if(zeroValue != NONE)
+            {
+                return zeroValue;
+            }
+            zeroValue = value;
+            size++;
+            return NONE;
+        }
+        int i = find(keys, key);
+        if(keys[i] == key)
+        {
+            return values[i];
+        }
+        keys[i] = key;
+        values[i] = value;
+        size++;
+        if(size * 2 > keys.length)
+        {
+            grow();
+        }
+        return NONE;
+    }
+
+    public long get(long key) {
+        if(key == EMPTY)
+        {
+            return zeroValue;
+        }
+        int i = find(keys, key);
+        return keys[i] == key ? values[i] : NONE;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** The slot that holds key, or the empty slot where it would go. */
+    private static int find(long[] t, long key) {
+        int mask = t.length - 1;
+        for(int i = slot(key, mask); ; i = (i + 1) & mask)
+        {
+            if(t[i] == key || t[i] == EMPTY)
+            {
+                return i;
+            }
+        }
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new long[oldKeys.length * 2];
+        for(int j = 0; j < oldKeys.length; j++)
+        {
+            if(oldKeys[j] != EMPTY)
+            {
+                int i = find(keys, oldKeys[j]);
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    private static int slot(long v, int mask) {
+        // murmur3 finaliser, so that similar values spread over the table
+        v ^= v >>> 33;
+        v *= 0xff51afd7ed558ccdL;
+        v ^= v >>> 33;
+        return (int) v & mask;
+    }
+}
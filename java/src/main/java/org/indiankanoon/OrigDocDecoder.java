@@ -0,0 +1,250 @@
+package org.indiankanoon;
+
+import java.nio.charset.StandardCharsets;
+import java.io.*;
+import java.util.*;
+import java.nio.file.*;
+
+/**
+ * Reads an origdoc response, {"doc": BASE64, "Content-Type": TYPE, ...},
+ * from a file in one streaming pass and decodes the doc into another file
+ * as it goes. Neither the base64 text nor the decoded original, which can
+ * be tens of MB, is ever held in memory as a whole.
+ */
+public class OrigDocDecoder
+{
+    // a multiple of 4, so that each chunk of base64 decodes on its own
+    private static final int CHUNK = 64 * 1024;
+
+    public final String contentType;
+    public final String errmsg;
+    public final boolean hasDoc;
+    public final long size;
+
+    private OrigDocDecoder(String contentType, String errmsg, boolean hasDoc, long size)
+    {
+        this.contentType = contentType;
+        this.errmsg = errmsg;
+        this.hasDoc = hasDoc;
+        this.size = size;
+    }
+
+    /**
+     * Decodes the doc of the response in body into target. Throws an
+     * IOException if body is not a json object or the doc is not base64.
+     */
+    public static OrigDocDecoder decode(Path body, Path target) throws IOException {
+        try (Reader in = Files.newBufferedReader(body, StandardCharsets.UTF_8);
+             OutputStream out = new BufferedOutputStream(Files.newOutputStream(target)))
+        {
+            return new Parser(in, out).parse();
+        } catch (IllegalArgumentException e) {
+            throw new IOException("bad base64 in doc: " + e.getMessage());
+        }
+    }
+
+    private static final class Parser
+    {
+        private final Reader in;
+        private final OutputStream out;
+        private int peeked = -2;
+
+        Parser(Reader in, OutputStream out)
+        {
+            this.in = in;
+            this.out = out;
+        }
+
+        OrigDocDecoder parse() throws IOException {
+            Map<String, String> fields = new HashMap<>();
+            boolean hasDoc = false;
+            long size = 0;
+            expect('{');
+            if(skipSpace() == '}')
+            {
+                next();
+            } else {
+                while (true)
+                {
+                    expect('"');
+                    String key = readString();
+                    expect(':');
+                    if(skipSpace() == '"')
+                    {
+                        next();
+                        if(key.equals("doc"))
+                        {
+                            hasDoc = true;
+                            size = decodeString();
+                        } else {
+                            fields.put(key, readString());
+                        }
+                    } else {
+                        skipValue();
+                    }
+                    int c = skipSpace();
+                    next();
+                    if(c == '}')
+                    {
+                        break;
+                    }
+                    if(c != ',')
+                    {
+                        throw new IOException("expected , or } in origdoc json");
+                    }
+                }
+            }
+            if(skipSpace() != -1)
+            {
+                throw new IOException("trailing data after origdoc json");
+            }
+            return new OrigDocDecoder(fields.get("Content-Type"), fields.get("errmsg"), hasDoc, size);
+        }
+
+        private int next() throws IOException {
+            int c = peeked != -2 ? peeked : in.read();
+            peeked = -2;
+            return c;
+        }
+
+        private int peek() throws IOException {
+            if(peeked == -2)
+            {
+                peeked = in.read();
+            }
+            return peeked;
+        }
+
+        private int skipSpace() throws IOException {
+            while (Character.isWhitespace(peek()))
+            {
+                next();
+            }
+            return peek();
+        }
+
+        private void expect(char c) throws IOException {
+            if(skipSpace() != c)
+            {
+                throw new IOException("expected " + c + " in origdoc json");
+            }
+            next();
+        }
+
+        /** Reads the rest of a string whose opening quote has been read. */
+        private String readString() throws IOException {
+            StringBuilder s = new StringBuilder();
+            while (true)
+            {
+                int c = next();
+                if(c == -1)
+                {
+                    throw new IOException("unterminated string in origdoc json");
+                }
+                if(c == '"')
+                {
+                    return s.toString();
+                }
+                s.append(c == '\\' ? unescape() : (char) c);
+            }
+        }
+
+        private char unescape() throws IOException {
+            int c = next();
+            switch (c)
+            {
+                case '"': case '\\': case '/':
+                    return (char) c;
+                case 'b':
+                    return '\b';
+                case 'f':
+                    return '\f';
+                case 'n':
+                    return '\n';
+                case 'r':
+                    return '\r';
+                case 't':
+                    return '\t';
+                case 'u':
+                    char[] hex = new char[4];
+                    for(int i=0;i<4;i++)
+                    {
+                        int h = next();
+                        if(Character.digit(h, 16) < 0)
+                        {
+                            throw new IOException("bad \\u escape in origdoc json");
+                        }
+                        hex[i] = (char) h;
+                    }
+                    return (char) Integer.parseInt(new String(hex), 16);
+                default:
+                    throw new IOException("bad escape in origdoc json");
+            }
+        }
+
+        /** Decodes the rest of a base64 string into out, returning the decoded size. */
+        private long decodeString() throws IOException {
+            Base64.Decoder decoder = Base64.getDecoder();
+            byte[] chunk = new byte[CHUNK];
+            int n = 0;
+            long size = 0;
+            while (true)
+            {
+                int c = next();
+                if(c == -1)
+                {
+                    throw new IOException("unterminated doc in origdoc json");
+                }
+                if(c == '"')
+                {
+                    break;
+                }
+                if(c == '\\')
+                {
+                    c = unescape();
+                }
+                if(Character.isWhitespace(c))
+                {
+                    continue;
+                }
+                chunk[n++] = (byte) c;
+                if(n == CHUNK)
+                {
+                    byte[] decoded = decoder.decode(chunk);
+                    out.write(decoded);
+                    size += decoded.length;
+                    n = 0;
+                }
+            }
+            byte[] decoded = decoder.decode(Arrays.copyOf(chunk, n));
+            out.write(decoded);
+            return size + decoded.length;
+        }
+
+        /** Skips a value that is not a string: a number, literal, object or array. */
+        private void skipValue() throws IOException {
+            int depth = 0;
+            while (true)
+            {
+                int c = peek();
+                if(c == -1)
+                {
+                    throw new IOException("unexpected end of origdoc json");
+                }
+                if(depth == 0 && (c == ',' || c == '}'))
+                {
+                    return;
+                }
+                next();
+                if(c == '"')
+                {
+                    readString();
+                } else if(c == '{' || c == '[') {
+                    depth++;
+                } else if(c == '}' || c == ']') {
+                    depth--;
+                }
+            }
+        }
+    }
+}
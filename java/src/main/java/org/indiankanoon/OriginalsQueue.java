@@ -0,0 +1,284 @@
+package org.indiankanoon;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+import java.util.function.BiFunction;
+import java.util.logging.*;
+import java.io.*;
+import java.util.*;
+import java.nio.file.*;
+
+/**
+ * Separate lane for original court copies (-o). Originals are much larger
+ * and slower than doc json, so instead of being fetched inline by
+ * downloadDoc they are queued here and fetched by their own small pool of
+ * threads. The lane has its own request rate, which keeps it to a small
+ * share of the API requests whatever the doc downloads are doing, and
+ * optionally a byte rate. The queue is journaled in
+ * DATADIR/originals as pending-NODE.log and done-NODE.log, one pair per
+ * node, so that nodes sharing a datadir never write the same file.
+ * Originals queued by an interrupted run are picked up by the next one
+ * from any journal whose node no longer holds its lease. An original goes
+ * into the done journal only once the writer stage has committed it.
+ */
+public class OriginalsQueue implements Closeable
+{
+    private static final Logger origLogger = Logger.getLogger("originals");
+
+    private final Path dir;
+    private final String journal;
+    private final LeaseManager leases;
+    private final ExecutorService pool;
+    private final BiFunction<Integer,String,CompletableFuture<Long>> fetcher;
+    private final long bytesPerSec;
+    private final RateLimiter limiter;
+    private final Set<String> queued = ConcurrentHashMap.newKeySet();
+    private final Set<String> failed = ConcurrentHashMap.newKeySet();
+    // fetched originals still waiting for their write to be committed
+    private final Set<CompletableFuture<Void>> committing = ConcurrentHashMap.newKeySet();
+    private final Writer pendingLog;
+    private final Writer doneLog;
+    private long nextFree = 0;
+
+    /**
+     * @param requestsPerSec most originals fetched per second (0 for no limit)
+     * @param fetcher saves one original; its future completes once the
+     *                original is on disk with the bytes fetched, or with -1
+     *                if it should be retried by a later run
+     */
+    public OriginalsQueue(Path dir, String nodeId, long leaseTtlMillis, int workers, long bytesPerSec, double requestsPerSec,
+            BiFunction<Integer,String,CompletableFuture<Long>> fetcher) throws IOException
+    {
+        this.dir = dir;
+        this.fetcher = fetcher;
+        this.bytesPerSec = bytesPerSec;
+        this.limiter = requestsPerSec > 0 ? new RateLimiter(requestsPerSec) : null;
+        Files.createDirectories(dir);
+        this.leases = new LeaseManager(dir.resolve("leases"), "journal", nodeId, leaseTtlMillis);
+
+        // our journal stays leased for as long as we run; if an earlier
+        // process with the same node id still holds it, use a journal of our own
+        String id = nodeId;
+        if(!leases.tryLock(journalUnit(id)))
+        {
+            id = nodeId + "-" + ProcessHandle.current().pid();
+            if(!leases.tryLock(journalUnit(id)))
+            {
+                throw new IOException("Journal of node " + id + " is in use");
+            }
+        }
+        this.journal = id;
+
+        List<String> leftover = new ArrayList<>(adopt(id));
+        List<String> adopted = new ArrayList<>();
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(dir, "pending-*.log"))
+        {
+            for(Path file: files)
+            {
+                String other = file.getFileName().toString().replaceAll("^pending-|\\.log$", "");
+                if(other.equals(id) || !leases.tryLock(journalUnit(other)))
+                {
+                    continue;
+                }
+                leftover.addAll(adopt(other));
+                adopted.add(other);
+            }
+        }
+        // start each run with a compacted journal, which takes over the
+        // entries of the adopted ones before they are removed
+        writeAtomically(pendingPath(id), leftover);
+        Files.deleteIfExists(donePath(id));
+        for(String other: adopted)
+        {
+            Files.deleteIfExists(pendingPath(other));
+            Files.deleteIfExists(donePath(other));
+            leases.release(journalUnit(other));
+        }
+        this.pendingLog = Files.newBufferedWriter(pendingPath(id), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        this.doneLog = Files.newBufferedWriter(donePath(id), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+
+        this.pool = Executors.newFixedThreadPool(workers, r -> {
+            Thread t = new Thread(r, "ikapi-originals");
+            t.setDaemon(true);
+            return t;
+        });
+        if(!leftover.isEmpty())
+        {
+            origLogger.info(String.format("Resuming %d original(s) queued by an earlier run", leftover.size()));
+        }
+        for(String line: leftover)
+        {
+            submit(line);
+        }
+    }
+
+    private static String journalUnit(String node) {
+        return LeaseManager.unitId("j", node);
+    }
+
+    private Path pendingPath(String node) {
+        return dir.resolve("pending-" + node + ".log");
+    }
+
+    private Path donePath(String node) {
+        return dir.resolve("done-" + node + ".log");
+    }
+
+    /** Entries of a node's journal that are not done, and not queued already. */
+    private List<String> adopt(String node) throws IOException {
+        Set<String> done = new HashSet<>(readLog(donePath(node)));
+        List<String> leftover = new ArrayList<>();
+        for(String line: readLog(pendingPath(node)))
+        {
+            if(!done.contains(line) && queued.add(line))
+            {
+                leftover.add(line);
+            }
+        }
+        return leftover;
+    }
+
+    private static void writeAtomically(Path file, Collection<String> lines) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmp, lines, StandardCharsets.UTF_8);
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static List<String> readLog(Path file) throws IOException {
+        if(!Files.exists(file))
+        {
+            return Collections.emptyList();
+        }
+        return Files.readAllLines(file, StandardCharsets.UTF_8);
+    }
+
+    public void enqueue(int docId, String origPath) {
+        String line = docId + "\t" + origPath;
+        if(!queued.add(line))
+        {
+            return;
+        }
+        try {
+            synchronized (pendingLog)
+            {
+                pendingLog.write(line);
+                pendingLog.write('\n');
+                pendingLog.flush();
+            }
+        } catch (IOException e) {
+            origLogger.warning(String.format("Error journaling original %d %s", docId, e.getMessage()));
+        }
+        submit(line);
+    }
+
+    private void submit(String line) {
+        pool.execute(() -> fetch(line));
+    }
+
+    private void fetch(String line) {
+        String[] parts = line.split("\t", 2);
+        if(parts.length < 2)
+        {
+            return;
+        }
+        try {
+            if(limiter != null)
+            {
+                limiter.acquire();
+            }
+            throttle();
+            CompletableFuture<Void> settled = fetcher.apply(Integer.parseInt(parts[0]), parts[1])
+                    .handle((bytes, e) -> {
+                        saved(line, bytes, e);
+                        return null;
+                    });
+            committing.add(settled);
+            settled.whenComplete((v, e) -> committing.remove(settled));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failed.add(line);
+        } catch (RuntimeException e) {
+            origLogger.warning(String.format("Error fetching original %s %s", line, e.getMessage()));
+            failed.add(line);
+        }
+    }
+
+    /** Runs once the write of an original has been committed, or has failed. */
+    private void saved(String line, Long bytes, Throwable error) {
+        if(error != null)
+        {
+            origLogger.warning(String.format("Error fetching original %s %s", line, error.getMessage()));
+        }
+        if(error != null || bytes == null || bytes < 0)
+        {
+            failed.add(line);
+            return;
+        }
+        account(bytes);
+        try {
+            synchronized (doneLog)
+            {
+                doneLog.write(line);
+                doneLog.write('\n');
+                doneLog.flush();
+            }
+        } catch (IOException e) {
+            origLogger.warning(String.format("Error journaling original %s %s", line, e.getMessage()));
+            failed.add(line);
+        }
+    }
+
+    private void throttle() throws InterruptedException {
+        if(bytesPerSec <= 0)
+        {
+            return;
+        }
+        long wait;
+        synchronized (this)
+        {
+            wait = nextFree - System.currentTimeMillis();
+        }
+        if(wait > 0)
+        {
+            Thread.sleep(wait);
+        }
+    }
+
+    private synchronized void account(long bytes) {
+        if(bytesPerSec > 0)
+        {
+            nextFree = Math.max(nextFree, System.currentTimeMillis()) + bytes * 1000 / bytesPerSec;
+        }
+    }
+
+    /** Waits for all queued originals and compacts the journal to the failed ones. */
+    @Override
+    public void close() throws IOException {
+        pool.shutdown();
+        try {
+            while (!pool.awaitTermination(1, TimeUnit.MINUTES))
+            {
+                origLogger.info("Waiting for queued originals to finish");
+            }
+            CompletableFuture.allOf(committing.toArray(new CompletableFuture<?>[0])).get();
+        } catch (ExecutionException e) {
+            origLogger.warning("Error waiting for originals to be written: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pool.shutdownNow();
+            pendingLog.close();
+            doneLog.close();
+            leases.close();
+            return;
+        }
+        pendingLog.close();
+        doneLog.close();
+        writeAtomically(pendingPath(journal), failed);
+        Files.deleteIfExists(donePath(journal));
+        leases.close();
+        if(!failed.isEmpty())
+        {
+            origLogger.warning(String.format("%d original(s) left for the next run", failed.size()));
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package org.indiankanoon;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.io.*;
+import java.util.*;
+import java.util.function.ToLongFunction;
+import java.util.logging.*;
+import java.nio.file.*;
+
+/**
+ * Streams queries out of a qfile one line at a time, dropping blank lines
+ * and queries already seen earlier in the file. Only a 64-bit hash of each
+ * query and the file offset of its line are remembered; when a hash comes
+ * round again, the earlier line is read back and compared, so a hash
+ * collision never drops a distinct query.
+ */
+public class QueryFile implements Iterator<String>, Closeable
+{
+    private static final Logger qfileLogger = Logger.getLogger("qfile");
+
+    private final InputStream in;
+    // for reading back earlier lines
+    private final FileChannel channel;
+    // 64-bit hash of each query returned so far -> offset of its line
+    private final LongLongMap seen = new LongLongMap();
+    private final ToLongFunction<String> hash;
+    private byte[] line = new byte[256];
+    private long offset = 0;
+    private String next;
+
+    public QueryFile(Path filePath) throws IOException
+    {
+        this(filePath, QueryFile::hash64);
+    }
+
+    /** Dedups by the given hash of a query instead of hash64. */
+    public QueryFile(Path filePath, ToLongFunction<String> hash) throws IOException
+    {
+        this.hash = hash;
+        this.channel = FileChannel.open(filePath, StandardOpenOption.READ);
+        this.in = new BufferedInputStream(Files.newInputStream(filePath), 64 * 1024);
+        advance();
+    }
+
+    private void advance() {
+        next = null;
+        try {
+            while (true)
+            {
+                long start = offset;
+                int n = readLine();
+                if(n < 0)
+                {
+                    return;
+                }
+                String q = decode(line, n);
+                if(q.isEmpty())
+                {
+                    continue;
+                }
+                long earlier = seen.putIfAbsent(hash.applyAsLong(q), start);
+                if(earlier == LongLongMap.NONE)
+                {
+                    next = q;
+                    return;
+                }
+                if(!q.equals(lineAt(earlier)))
+                {
+                    qfileLogger.warning(String.format("Query hash collides with an earlier query, keeping q: %s", q));
+                    next = q;
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Reads the next line into line; returns its length, or -1 at the end of the file. */
+    private int readLine() throws IOException {
+        int n = 0;
+        int c;
+        while ((c = in.read()) != -1)
+        {
+            offset++;
+            if(c == '\n')
+            {
+                return n;
+            }
+            if(n == line.length)
+            {
+                line = Arrays.copyOf(line, n * 2);
+            }
+            line[n++] = (byte) c;
+        }
+        return n == 0 ? -1 : n;
+    }
+
+    /** Reads back the query on the line at pos. */
+    private String lineAt(long pos) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        while (true)
+        {
+            buf.clear();
+            int r = channel.read(buf, pos);
+            if(r <= 0)
+            {
+                break;
+            }
+            int end = 0;
+            while (end < r && buf.get(end) != '\n')
+            {
+                end++;
+            }
+            bytes.write(buf.array(), 0, end);
+            if(end < r)
+            {
+                break;
+            }
+            pos += r;
+        }
+        return decode(bytes.toByteArray(), bytes.size());
+    }
+
+    private static String decode(byte[] b, int n) {
+        return new String(b, 0, n, StandardCharsets.UTF_8).trim();
+    }
+
+    public static long hash64(String s) {
+        // FNV-1a
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++)
+        {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    @Override
+    public String next() {
+        if(next == null)
+        {
+            throw new NoSuchElementException();
+        }
+        String q = next;
+        advance();
+        return q;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            in.close();
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package org.indiankanoon;
+
+import java.util.*;
+
+/**
+ * A query admitted into the QueryScheduler, with the tasks it has waiting.
+ */
+public class QueryJob
+{
+    final String q;
+    final Deque<Runnable> pending = new ArrayDeque<>();
+    final Deadline deadline;
+    boolean queued = false;
+    boolean expiredLogged = false;
+    private int outstanding = 0;
+    private Runnable onDone;
+
+    QueryJob(String q, Deadline deadline)
+    {
+        this.q = q;
+        this.deadline = deadline;
+    }
+
+    synchronized void onDone(Runnable onDone)
+    {
+        this.onDone = onDone;
+    }
+
+    synchronized void taskAdded()
+    {
+        outstanding++;
+    }
+
+    /** Returns true when the last outstanding task of the query finished. */
+    synchronized boolean taskDone()
+    {
+        outstanding--;
+        return outstanding == 0;
+    }
+
+    synchronized Runnable takeOnDone()
+    {
+        Runnable r = onDone;
+        onDone = null;
+        return r;
+    }
+}
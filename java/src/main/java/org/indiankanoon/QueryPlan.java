@@ -0,0 +1,88 @@
+package org.indiankanoon;
+
+import java.util.logging.*;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Totals gathered by IKApi.plan from the first result page of each query,
+ * and the projection of what the full run would cost.
+ */
+class QueryPlan
+{
+    private static final Logger planLogger = Logger.getLogger("plan");
+    private static final Pattern NUMBER = Pattern.compile("\\d[\\d,]*");
+
+    private final boolean overlap;
+    private final Set<Integer> firstPageUnique = new HashSet<>();
+    private int queries = 0;
+    private int failed = 0;
+    private long found = 0;
+    private long pages = 0;
+    private long searchCalls = 0;
+    private long firstPageDocs = 0;
+    private long latencyNanos = 0;
+
+    QueryPlan(boolean overlap)
+    {
+        this.overlap = overlap;
+    }
+
+    /** Takes the last number in "found", which may be a bare count or e.g. "1 - 10 of 2,345". */
+    static long parseFound(String found) {
+        Matcher m = NUMBER.matcher(found);
+        long n = 0;
+        while (m.find())
+        {
+            n = Long.parseLong(m.group().replace(",", ""));
+        }
+        return n;
+    }
+
+    synchronized void add(String q, long queryFound, List<Integer> docIds, long elapsedNanos, int maxPages) {
+        // the API returns 10 results per page, and pagination stops at the first empty page
+        long queryPages = (queryFound + 9) / 10;
+        long querySearchCalls = (queryPages + maxPages - 1) / maxPages + 1;
+        planLogger.info(String.format("Plan q: %s found: %d pages: %d search calls: %d", q, queryFound, queryPages, querySearchCalls));
+        queries++;
+        found += queryFound;
+        pages += queryPages;
+        searchCalls += querySearchCalls;
+        latencyNanos += elapsedNanos;
+        firstPageDocs += docIds.size();
+        if(overlap)
+        {
+            firstPageUnique.addAll(docIds);
+        }
+    }
+
+    synchronized void addFailed() {
+        failed++;
+    }
+
+    synchronized void report(int numWorkers, double rate, boolean docsCount, boolean orig) {
+        long docs = found;
+        if(overlap && firstPageDocs > 0)
+        {
+            docs = Math.round(found * (double) firstPageUnique.size() / firstPageDocs);
+            planLogger.info(String.format("Overlap on first pages: %d of %d docids unique, about %d unique docs in total",
+                    firstPageUnique.size(), firstPageDocs, docs));
+        }
+        long docCalls = docsCount ? 0 : docs;
+        long calls = searchCalls + docCalls;
+        double meanLatency = queries == 0 ? 0 : latencyNanos / 1e9 / queries;
+        double seconds = calls * meanLatency / numWorkers;
+        if(rate > 0)
+        {
+            seconds = Math.max(seconds, calls / rate);
+        }
+        long s = Math.round(seconds);
+        planLogger.info(String.format("Plan: %d queries (%d failed), found: %d, pages: %d, api calls: %d (%d search + %d doc%s)",
+                queries, failed, found, pages, calls, searchCalls, docCalls,
+                orig && !docsCount ? String.format(" + up to %d originals", docs) : ""));
+        planLogger.info(String.format("Projected duration: %dh %02dm %02ds at %d workers, %.2fs mean latency%s",
+                s / 3600, s / 60 % 60, s % 60, numWorkers, meanLatency,
+                rate > 0 ? String.format(", %.2f requests/s", rate) : ""));
+    }
+}
@@ -0,0 +1,179 @@
+package org.indiankanoon;
+
+import jdk.jfr.FlightRecorder;
+import java.util.concurrent.*;
+import java.util.logging.*;
+import java.util.*;
+
+/**
+ * Two-level scheduler for qfile runs. Pagination and doc download tasks of
+ * all active queries run on one fixed pool of numWorkers threads; a
+ * dispatcher thread hands them to the pool one per query in turn (round
+ * robin), never more than numWorkers at a time, so the pool's own queue
+ * stays empty and the order is the dispatcher's. At most maxActive queries are admitted at once.
+ * A query still running after jobDeadlineMillis has its remaining tasks
+ * dropped.
+ */
+public class QueryScheduler
+{
+    private static final Logger schedulerLogger = Logger.getLogger("scheduler");
+
+    private final ExecutorService pool;
+    private final Semaphore slots;
+    private final Semaphore admission;
+    private final int maxActive;
+    private final Deque<QueryJob> ready = new ArrayDeque<>();
+    private final Thread dispatcher;
+    private final long jobDeadlineMillis;
+    private boolean closed = false;
+
+    public QueryScheduler(int numWorkers, int maxActive, long jobDeadlineMillis)
+    {
+        this.jobDeadlineMillis = jobDeadlineMillis;
+        this.pool = Executors.newFixedThreadPool(numWorkers, r -> {
+            Thread t = new Thread(r, "ikapi-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        this.slots = new Semaphore(numWorkers);
+        this.maxActive = maxActive;
+        this.admission = new Semaphore(maxActive);
+        this.dispatcher = new Thread(this::dispatch, "ikapi-dispatcher");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    /**
+     * Blocks until there is room for one more active query and then
+     * starts it through the given callback.
+     */
+    public void admit(String q, java.util.function.Consumer<QueryJob> start) throws InterruptedException {
+        admit(q, Deadline.after(jobDeadlineMillis), start);
+    }
+
+    /**
+     * Like admit, but the tasks run under the given deadline, e.g. one
+     * shared by all the slices of a split query.
+     */
+    void admit(String q, Deadline deadline, java.util.function.Consumer<QueryJob> start) throws InterruptedException {
+        admission.acquire();
+        QueryJob job = new QueryJob(q, deadline);
+        // hold the job open while start() queues its first task
+        job.taskAdded();
+        try {
+            Deadline.run(job.deadline, () -> start.accept(job));
+        } finally {
+            finishTask(job);
+        }
+    }
+
+    public void submit(QueryJob job, Runnable task) {
+        job.taskAdded();
+        synchronized (ready)
+        {
+            job.pending.addLast(task);
+            if(!job.queued)
+            {
+                job.queued = true;
+                ready.addLast(job);
+                ready.notifyAll();
+            }
+        }
+    }
+
+    /** Waits for every admitted query to finish. */
+    public void awaitIdle() throws InterruptedException {
+        admission.acquire(maxActive);
+        admission.release(maxActive);
+    }
+
+    public void shutdown() {
+        synchronized (ready)
+        {
+            closed = true;
+            ready.notifyAll();
+        }
+        pool.shutdown();
+    }
+
+    private void dispatch() {
+        try {
+            while (true)
+            {
+                slots.acquire();
+                QueryJob job;
+                Runnable task;
+                synchronized (ready)
+                {
+                    while (ready.isEmpty() && !closed)
+                    {
+                        ready.wait();
+                    }
+                    if(ready.isEmpty())
+                    {
+                        return;
+                    }
+                    job = ready.pollFirst();
+                    task = job.pending.pollFirst();
+                    if(job.pending.isEmpty())
+                    {
+                        job.queued = false;
+                    } else {
+                        ready.addLast(job);
+                    }
+                }
+                pool.execute(() -> runTask(job, task));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runTask(QueryJob job, Runnable task) {
+        try {
+            if(job.deadline != null && job.deadline.expired())
+            {
+                synchronized (job)
+                {
+                    if(!job.expiredLogged)
+                    {
+                        job.expiredLogged = true;
+                        schedulerLogger.warning(String.format("Deadline exceeded, dropping the rest of q: %s",job.q));
+                    }
+                }
+                return;
+            }
+            QueryTaskEvent event = FlightRecorder.isInitialized() ? new QueryTaskEvent() : null;
+            if(event != null)
+            {
+                event.begin();
+            }
+            try {
+                Deadline.run(job.deadline, task);
+            } finally {
+                if(event != null && event.shouldCommit())
+                {
+                    event.query = job.q;
+                    event.commit();
+                }
+            }
+        } catch (RuntimeException e) {
+            schedulerLogger.severe(String.format("Task failed for q: %s %s",job.q,e.getMessage()));
+        } finally {
+            slots.release();
+            finishTask(job);
+        }
+    }
+
+    private void finishTask(QueryJob job) {
+        if(job.taskDone())
+        {
+            Runnable onDone = job.takeOnDone();
+            if(onDone != null)
+            {
+                onDone.run();
+            }
+            admission.release();
+        }
+    }
+}
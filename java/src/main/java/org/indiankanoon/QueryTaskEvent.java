@@ -0,0 +1,17 @@
+package org.indiankanoon;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("org.indiankanoon.QueryTask")
+@Label("Query Task")
+@Category({"IKAPI", "Crawl"})
+@Description("A pagination or download task run by the query scheduler for a query")
+class QueryTaskEvent extends Event
+{
+    @Label("Query")
+    String query;
+}
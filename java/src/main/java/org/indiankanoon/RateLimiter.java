@@ -0,0 +1,43 @@
+package org.indiankanoon;
+
+import java.util.concurrent.*;
+
+/**
+ * Spaces out API requests so that at most `perSecond` start every second,
+ * across all threads.
+ */
+class RateLimiter
+{
+    private final long intervalNanos;
+    private long next = 0;
+
+    RateLimiter(double perSecond)
+    {
+        this.intervalNanos = (long) (1_000_000_000L / perSecond);
+    }
+
+    void acquire() throws InterruptedException {
+        long wait = reserve();
+        if(wait > 0)
+        {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /** Takes the next free slot without waiting for it; returns the nanos until it comes. */
+    synchronized long reserve() {
+        long now = System.nanoTime();
+        if(next < now)
+        {
+            next = now;
+        }
+        long wait = next - now;
+        next += intervalNanos;
+        return wait;
+    }
+
+    /** Nanos until a request could start, 0 if one could now. */
+    synchronized long delay() {
+        return Math.max(0, next - System.nanoTime());
+    }
+}
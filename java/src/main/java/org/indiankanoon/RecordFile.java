@@ -0,0 +1,92 @@
+package org.indiankanoon;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.io.*;
+import java.nio.file.*;
+
+/**
+ * Read-only view of a file holding a header followed by fixed width records.
+ * The file is mapped in windows of whole records so that it is not limited
+ * to the 2GB a single mapping can hold; a trailing partial record is ignored.
+ */
+public class RecordFile
+{
+    private static final long WINDOW_SIZE = 1L << 30;
+
+    private final int recordSize;
+    private final long recordsPerWindow;
+    private final long count;
+    private final ByteBuffer header;
+    private final ByteBuffer[] windows;
+
+    private RecordFile(int recordSize, long recordsPerWindow, long count, ByteBuffer header, ByteBuffer[] windows)
+    {
+        this.recordSize = recordSize;
+        this.recordsPerWindow = recordsPerWindow;
+        this.count = count;
+        this.header = header;
+        this.windows = windows;
+    }
+
+    public static RecordFile open(Path file, int headerSize, int recordSize) throws IOException {
+        return open(file, headerSize, recordSize, WINDOW_SIZE);
+    }
+
+    public static RecordFile open(Path file, int headerSize, int recordSize, long windowSize) throws IOException {
+        long perWindow = Math.max(1, windowSize / recordSize);
+        if(!Files.exists(file))
+        {
+            return new RecordFile(recordSize, perWindow, 0, ByteBuffer.allocate(0), new ByteBuffer[0]);
+        }
+        try(FileChannel ch = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            long size = ch.size();
+            if(size < headerSize)
+            {
+                return new RecordFile(recordSize, perWindow, 0, ByteBuffer.allocate(0), new ByteBuffer[0]);
+            }
+            ByteBuffer header = ByteBuffer.allocate(headerSize);
+            int n = 0;
+            while (header.hasRemaining() && n >= 0)
+            {
+                n = ch.read(header, header.position());
+            }
+            long count = (size - headerSize) / recordSize;
+            ByteBuffer[] windows = new ByteBuffer[(int) ((count + perWindow - 1) / perWindow)];
+            for(int w=0;w<windows.length;w++)
+            {
+                long first = w * perWindow;
+                long records = Math.min(perWindow, count - first);
+                windows[w] = ch.map(FileChannel.MapMode.READ_ONLY, headerSize + first * recordSize, records * recordSize);
+            }
+            return new RecordFile(recordSize, perWindow, count, header, windows);
+        }
+    }
+
+    /** Number of whole records in the file. */
+    public long count() {
+        return count;
+    }
+
+    /** Size of the header actually present, 0 when the file is shorter than it. */
+    public int headerSize() {
+        return header.limit();
+    }
+
+    public int headerInt(int offset) {
+        return header.getInt(offset);
+    }
+
+    public int getInt(long recno, int offset) {
+        return windows[(int) (recno / recordsPerWindow)].getInt(position(recno) + offset);
+    }
+
+    public long getLong(long recno, int offset) {
+        return windows[(int) (recno / recordsPerWindow)].getLong(position(recno) + offset);
+    }
+
+    private int position(long recno) {
+        return (int) ((recno % recordsPerWindow) * recordSize);
+    }
+}
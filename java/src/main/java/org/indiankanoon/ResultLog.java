@@ -0,0 +1,271 @@
+package org.indiankanoon;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.logging.*;
+import java.io.*;
+import java.util.*;
+import java.nio.file.*;
+
+/**
+ * Consolidated result log of every search hit across all queries, kept in
+ * DATADIR/resultlog:
+ *
+ *   hits.bin     fixed width records (query id, position, docid, publish date
+ *                as epoch day, court id, offset of the title in titles.bin)
+ *   titles.bin   length prefixed UTF-8 titles
+ *   queries.txt  query dictionary, courts.txt court dictionary
+ *   docid.idx    record numbers sorted by docid
+ *   date.idx     record numbers sorted by publish date
+ *
+ * The indexes are rebuilt when the log is closed and whenever a lookup finds
+ * them older than hits.bin.
+ */
+public class ResultLog implements Closeable
+{
+    private static final Logger resultLogLogger = Logger.getLogger("resultlog");
+
+    public static final int RECORD_SIZE = 28;
+    public static final int NO_DATE = Integer.MIN_VALUE;
+
+    private static final int QUERY = 0;
+    private static final int POSITION = 4;
+    private static final int DOCID = 8;
+    private static final int DATE = 12;
+    private static final int COURT = 16;
+    private static final int TITLE = 20;
+
+    private final Path dir;
+    private final FileChannel hits;
+    private final FileChannel titles;
+    private final StringDictionary queries;
+    private final StringDictionary courts;
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+
+    public ResultLog(Path dir) throws IOException
+    {
+        this.dir = dir;
+        Files.createDirectories(dir);
+        this.hits = FileChannel.open(dir.resolve("hits.bin"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.titles = FileChannel.open(dir.resolve("titles.bin"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        // drop a partially written record left behind by a crash
+        this.hits.truncate(this.hits.size() - this.hits.size() % RECORD_SIZE);
+        this.hits.position(this.hits.size());
+        this.titles.position(this.titles.size());
+        this.queries = new StringDictionary(dir.resolve("queries.txt"), true);
+        this.courts = new StringDictionary(dir.resolve("courts.txt"), true);
+    }
+
+    public synchronized void append(String q, SearchHit hit) throws IOException {
+        long titleOffset = titles.position();
+        byte[] title = hit.title.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer tb = ByteBuffer.allocate(4 + title.length);
+        tb.putInt(title.length).put(title).flip();
+        while (tb.hasRemaining())
+        {
+            titles.write(tb);
+        }
+
+        record.clear();
+        record.putInt(queries.getId(q))
+              .putInt(hit.position)
+              .putInt(hit.docId)
+              .putInt(toEpochDay(hit.publishDate))
+              .putInt(courts.getId(hit.court))
+              .putLong(titleOffset)
+              .flip();
+        while (record.hasRemaining())
+        {
+            hits.write(record);
+        }
+    }
+
+    /** Parses a -f/-t style DD-MM-YYYY date. */
+    public static LocalDate parseUserDate(String date) {
+        return LocalDate.parse(date.trim(), DateTimeFormatter.ofPattern("d-M-uuuu"));
+    }
+
+    public static int toEpochDay(String publishDate) {
+        try {
+            return (int) IKApiMain.getDateObj(publishDate).toEpochDay();
+        } catch (RuntimeException e) {
+            return NO_DATE;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        hits.force(false);
+        titles.force(false);
+        hits.close();
+        titles.close();
+        queries.close();
+        courts.close();
+        buildIndexes(dir);
+    }
+
+    public static void buildIndexes(Path dir) throws IOException {
+        RecordFile data = RecordFile.open(dir.resolve("hits.bin"), 0, RECORD_SIZE);
+        writeIndex(dir.resolve("docid.idx"), data, DOCID);
+        writeIndex(dir.resolve("date.idx"), data, DATE);
+    }
+
+    private static void writeIndex(Path idxFile, RecordFile data, int keyOffset) throws IOException {
+        // the index holds int record numbers, which still covers ~60GB of hits
+        if(data.count() > Integer.MAX_VALUE - 8)
+        {
+            throw new IOException("Too many records for an index: " + data.count());
+        }
+        int count = (int) data.count();
+        long[] keys = new long[count];
+        for(int i=0;i<count;i++)
+        {
+            keys[i] = ((long) data.getInt(i, keyOffset) << 32) | i;
+        }
+        Arrays.sort(keys);
+
+        ByteBuffer out = ByteBuffer.allocate(1 << 16);
+        out.putInt(count);
+        Path tmp = idxFile.resolveSibling(idxFile.getFileName() + ".tmp");
+        try(FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            for(long key: keys)
+            {
+                if(!out.hasRemaining())
+                {
+                    writeFully(ch, out);
+                }
+                out.putInt((int) key);
+            }
+            writeFully(ch, out);
+        }
+        Files.move(tmp, idxFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer out) throws IOException {
+        out.flip();
+        while (out.hasRemaining())
+        {
+            ch.write(out);
+        }
+        out.clear();
+    }
+
+    private static RecordFile openIndex(Path file) throws IOException {
+        return RecordFile.open(file, 4, 4);
+    }
+
+    private static boolean isCurrent(RecordFile idx, long count) {
+        return idx.headerSize() == 4 && idx.headerInt(0) == count && idx.count() == count;
+    }
+
+    /**
+     * Prints the hits matching all the given filters (any of which may be
+     * null) as tab separated lines: query, position, docid, date, court, title.
+     * Returns the number of hits printed.
+     */
+    public static int lookup(Path dir, Integer docId, String court, LocalDate fromDate, LocalDate toDate, PrintStream out) throws IOException {
+        RecordFile data = RecordFile.open(dir.resolve("hits.bin"), 0, RECORD_SIZE);
+        long count = data.count();
+        RecordFile docIdx = openIndex(dir.resolve("docid.idx"));
+        RecordFile dateIdx = openIndex(dir.resolve("date.idx"));
+        if(!isCurrent(docIdx, count) || !isCurrent(dateIdx, count))
+        {
+            resultLogLogger.info("Result log indexes are stale, rebuilding");
+            buildIndexes(dir);
+            docIdx = openIndex(dir.resolve("docid.idx"));
+            dateIdx = openIndex(dir.resolve("date.idx"));
+        }
+
+        StringDictionary queries = new StringDictionary(dir.resolve("queries.txt"), false);
+        StringDictionary courts = new StringDictionary(dir.resolve("courts.txt"), false);
+        Integer courtId = null;
+        if(court != null)
+        {
+            courtId = courts.lookupId(court);
+            if(courtId == null)
+            {
+                return 0;
+            }
+        }
+        boolean dateFilter = fromDate != null || toDate != null;
+        int from = fromDate == null ? Integer.MIN_VALUE : (int) fromDate.toEpochDay();
+        int to = toDate == null ? Integer.MAX_VALUE : (int) toDate.toEpochDay();
+
+        RecordFile idx;
+        long lo;
+        long hi;
+        if(docId != null)
+        {
+            idx = docIdx;
+            lo = lowerBound(data, idx, DOCID, docId);
+            hi = docId == Integer.MAX_VALUE ? count : lowerBound(data, idx, DOCID, docId + 1);
+        } else {
+            idx = dateIdx;
+            lo = lowerBound(data, idx, DATE, from);
+            hi = to == Integer.MAX_VALUE ? count : lowerBound(data, idx, DATE, to + 1);
+        }
+
+        int printed = 0;
+        try(FileChannel titles = FileChannel.open(dir.resolve("titles.bin"), StandardOpenOption.READ))
+        {
+            for(long i=lo;i<hi;i++)
+            {
+                long recno = idx.getInt(i, 0) & 0xffffffffL;
+                int date = data.getInt(recno, DATE);
+                if(courtId != null && data.getInt(recno, COURT) != courtId)
+                {
+                    continue;
+                }
+                if(dateFilter && (date == NO_DATE || date < from || date > to))
+                {
+                    continue;
+                }
+                out.println(String.join("\t",
+                        queries.getValue(data.getInt(recno, QUERY)),
+                        String.valueOf(data.getInt(recno, POSITION)),
+                        String.valueOf(data.getInt(recno, DOCID)),
+                        date == NO_DATE ? "" : LocalDate.ofEpochDay(date).toString(),
+                        courts.getValue(data.getInt(recno, COURT)),
+                        readTitle(titles, data.getLong(recno, TITLE))));
+                printed++;
+            }
+        }
+        return printed;
+    }
+
+    private static long lowerBound(RecordFile data, RecordFile idx, int keyOffset, int key) {
+        long lo = 0;
+        long hi = idx.count();
+        while (lo < hi)
+        {
+            long mid = (lo + hi) >>> 1;
+            long recno = idx.getInt(mid, 0) & 0xffffffffL;
+            if(data.getInt(recno, keyOffset) < key)
+            {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private static String readTitle(FileChannel titles, long offset) throws IOException {
+        ByteBuffer len = ByteBuffer.allocate(4);
+        if(titles.read(len, offset) < 4)
+        {
+            return "";
+        }
+        ByteBuffer b = ByteBuffer.allocate(len.getInt(0));
+        int n = 0;
+        while (b.hasRemaining() && n >= 0)
+        {
+            n = titles.read(b, offset + 4 + b.position());
+        }
+        return new String(b.array(), 0, b.position(), StandardCharsets.UTF_8);
+    }
+}
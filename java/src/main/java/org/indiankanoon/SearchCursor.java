@@ -0,0 +1,27 @@
+package org.indiankanoon;
+
+import java.nio.file.*;
+
+/**
+ * State of one query being paged through by IKApi.nextPage.
+ */
+class SearchCursor
+{
+    /** query sent to the API */
+    final String q;
+    /** query the hits are recorded under, the unsplit one for a date slice */
+    String label;
+    Path dataDir;
+    TocWriter writer;
+    int pageNum = 0;
+    int current = 1;
+    boolean done = false;
+    /** set once the API returned an empty or short batch, rather than failing */
+    boolean exhausted = false;
+
+    SearchCursor(String q)
+    {
+        this.q = q;
+        this.label = q;
+    }
+}
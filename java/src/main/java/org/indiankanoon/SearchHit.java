@@ -0,0 +1,26 @@
+package org.indiankanoon;
+
+import java.nio.file.*;
+
+/**
+ * One search result along with the directory its doc is saved into.
+ */
+public class SearchHit
+{
+    public final int position;
+    public final int docId;
+    public final String publishDate;
+    public final String court;
+    public final String title;
+    public final Path docPath;
+
+    public SearchHit(int position, int docId, String publishDate, String court, String title, Path docPath)
+    {
+        this.position = position;
+        this.docId = docId;
+        this.publishDate = publishDate;
+        this.court = court;
+        this.title = title;
+        this.docPath = docPath;
+    }
+}
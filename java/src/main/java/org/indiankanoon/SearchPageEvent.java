@@ -0,0 +1,23 @@
+package org.indiankanoon;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("org.indiankanoon.SearchPage")
+@Label("Search Page")
+@Category({"IKAPI", "Crawl"})
+@Description("Fetching one batch of result pages of a query")
+class SearchPageEvent extends Event
+{
+    @Label("Query")
+    String query;
+
+    @Label("Page Number")
+    int pageNum;
+
+    @Label("Hits")
+    int hits;
+}
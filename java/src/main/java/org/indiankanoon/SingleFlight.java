@@ -0,0 +1,41 @@
+package org.indiankanoon;
+
+import java.util.concurrent.*;
+
+/**
+ * Coalesces concurrent calls with the same key: the first caller runs the
+ * call and everyone arriving while it is in flight waits for and shares
+ * its result. Nothing is cached once the call completes.
+ */
+public class SingleFlight<V>
+{
+    private final ConcurrentHashMap<String, CompletableFuture<V>> calls = new ConcurrentHashMap<>();
+
+    public V run(String key, java.util.function.Supplier<V> call) {
+        CompletableFuture<V> mine = new CompletableFuture<>();
+        CompletableFuture<V> running = calls.putIfAbsent(key, mine);
+        if(running != null)
+        {
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                if(e.getCause() instanceof Error)
+                {
+                    throw (Error) e.getCause();
+                }
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+        try {
+            V result = call.get();
+            mine.complete(result);
+            return result;
+        } catch (Throwable e) {
+            // errors too, or the waiters would be stuck on the future forever
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            calls.remove(key, mine);
+        }
+    }
+}
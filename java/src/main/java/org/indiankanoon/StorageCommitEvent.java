@@ -0,0 +1,25 @@
+package org.indiankanoon;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("org.indiankanoon.StorageCommit")
+@Label("Storage Commit")
+@Category({"IKAPI", "Storage"})
+@Description("One batch of writes committed by the writer stage")
+class StorageCommitEvent extends Event
+{
+    @Label("Files")
+    int files;
+
+    @Label("Size")
+    @DataAmount
+    long bytes;
+
+    @Label("Synced")
+    boolean synced;
+}
@@ -0,0 +1,28 @@
+package org.indiankanoon;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("org.indiankanoon.StorageWrite")
+@Label("Storage Write")
+@Category({"IKAPI", "Storage"})
+@Description("Writing a doc json or original to the datadir")
+class StorageWriteEvent extends Event
+{
+    @Label("Kind")
+    String kind;
+
+    @Label("Path")
+    String path;
+
+    @Label("Size")
+    @DataAmount
+    long bytes;
+
+    @Label("Success")
+    boolean success;
+}
@@ -0,0 +1,418 @@
+package org.indiankanoon;
+
+import jdk.jfr.FlightRecorder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.*;
+import java.io.*;
+import java.util.*;
+import java.nio.file.*;
+
+/**
+ * Writer stage between the fetchers and the disk. Fetchers hand over the
+ * bytes of a file through a bounded queue, blocking only when the disk has
+ * fallen that far behind, and writer threads write each one to a temp file
+ * through a FileChannel and rename it into place. A file already written
+ * elsewhere (an original decoded from a spilled response) can be handed
+ * over as well, and is only committed.
+ *
+ * With a commit interval the writes gathered over the interval are
+ * committed as a group: all temp files are fsync'd, renamed, and then each
+ * directory they went to is fsync'd once. A file that is there after a
+ * crash is then complete and on disk. Without it nothing is fsync'd, as
+ * before.
+ *
+ * submit returns a future that completes once the file is in place (after
+ * the group's fsyncs), with false if it could not be written. Anything
+ * that reports a file as saved does so from there.
+ */
+public class StorageWriter implements Closeable
+{
+    private static final Logger writerLogger = Logger.getLogger("storagewriter");
+    private static final int MAX_BATCH = 256;
+
+    private static final class PendingWrite
+    {
+        final String kind;
+        final Path target;
+        // the bytes to write, or null for a file already written to source
+        final byte[] data;
+        final Path source;
+        final CompletableFuture<Boolean> committed = new CompletableFuture<>();
+        final AtomicBoolean settled = new AtomicBoolean();
+
+        PendingWrite(String kind, Path target, byte[] data, Path source)
+        {
+            this.kind = kind;
+            this.target = target;
+            this.data = data;
+            this.source = source;
+        }
+
+        /** Bytes held in memory until it is committed. */
+        long held() {
+            return data == null ? 0 : data.length;
+        }
+    }
+
+    private static final PendingWrite STOP = new PendingWrite(null, null, null, null);
+
+    private final BlockingQueue<PendingWrite> queue;
+    private final long commitMillis;
+    private final ByteBudget budget;
+    private final Thread[] threads;
+    // targets queued or being written, with a count for repeated writes
+    private final Map<Path, Integer> pending = new HashMap<>();
+    private boolean closed = false;
+
+    public StorageWriter(int numThreads, int queueSize, long commitMillis, ByteBudget budget)
+    {
+        this.budget = budget;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        this.commitMillis = commitMillis;
+        this.threads = new Thread[Math.max(1, numThreads)];
+        for(int i=0;i<threads.length;i++)
+        {
+            threads[i] = new Thread(this::run, "ikapi-writer-" + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    /**
+     * Queues a write; the file shows up at target once it is committed, and
+     * the future returned completes then (with false if it failed).
+     */
+    public CompletableFuture<Boolean> submit(String kind, Path target, byte[] data) throws IOException {
+        return enqueue(new PendingWrite(kind, target, data, null));
+    }
+
+    /**
+     * Queues a complete file, which must be on the same file system as
+     * target, to be committed by moving it to target. It is deleted if that
+     * fails.
+     */
+    public CompletableFuture<Boolean> submitFile(String kind, Path source, Path target) throws IOException {
+        return enqueue(new PendingWrite(kind, target, null, source));
+    }
+
+    private CompletableFuture<Boolean> enqueue(PendingWrite w) throws IOException {
+        Path target = w.target;
+        synchronized (this)
+        {
+            if(closed)
+            {
+                throw new IOException("storage writer is closed");
+            }
+            pending.merge(target, 1, Integer::sum);
+        }
+        if(budget != null)
+        {
+            budget.force(w.held());
+        }
+        try {
+            queue.put(w);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            done(w, false);
+            throw new InterruptedIOException("interrupted while queueing " + target);
+        }
+        return w.committed;
+    }
+
+    public synchronized boolean isPending(Path target) {
+        return pending.containsKey(target);
+    }
+
+    /** True if a file whose path starts with prefix is waiting to be written. */
+    synchronized boolean isPendingPrefix(String prefix) {
+        for(Path p: pending.keySet())
+        {
+            if(p.toString().startsWith(prefix))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Waits until everything queued so far has been committed. */
+    public synchronized void flush() throws InterruptedException {
+        while (!pending.isEmpty())
+        {
+            wait();
+        }
+    }
+
+    /**
+     * Settles w once, however many times it is called. The future is
+     * completed last, so whoever it wakes sees the target no longer pending.
+     */
+    private void done(PendingWrite w, boolean success) {
+        if(!w.settled.compareAndSet(false, true))
+        {
+            return;
+        }
+        if(!success && w.source != null)
+        {
+            deleteQuietly(w.source);
+        }
+        if(budget != null)
+        {
+            budget.release(w.held());
+        }
+        synchronized (this)
+        {
+            pending.computeIfPresent(w.target, (k, n) -> n == 1 ? null : n - 1);
+            if(pending.isEmpty())
+            {
+                notifyAll();
+            }
+        }
+        w.committed.complete(success);
+    }
+
+
+    @Override
+    public void close() {
+        synchronized (this)
+        {
+            if(closed)
+            {
+                return;
+            }
+            closed = true;
+        }
+        try {
+            for(int i=0;i<threads.length;i++)
+            {
+                queue.put(STOP);
+            }
+            for(Thread t: threads)
+            {
+                t.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            writerLogger.warning("Interrupted while flushing pending writes");
+        }
+    }
+
+    private void run() {
+        List<PendingWrite> batch = new ArrayList<>();
+        boolean stopping = false;
+        try {
+            while (!stopping)
+            {
+                PendingWrite first = queue.take();
+                if(first == STOP)
+                {
+                    break;
+                }
+                batch.add(first);
+                if(commitMillis > 0)
+                {
+                    long until = System.nanoTime() + commitMillis * 1_000_000L;
+                    while (batch.size() < MAX_BATCH)
+                    {
+                        long left = until - System.nanoTime();
+                        PendingWrite w = left > 0 ? queue.poll(left, TimeUnit.NANOSECONDS) : null;
+                        if(w == null)
+                        {
+                            break;
+                        }
+                        if(w == STOP)
+                        {
+                            stopping = true;
+                            break;
+                        }
+                        batch.add(w);
+                    }
+                } else {
+                    while (batch.size() < MAX_BATCH)
+                    {
+                        PendingWrite w = queue.poll();
+                        if(w == null)
+                        {
+                            break;
+                        }
+                        if(w == STOP)
+                        {
+                            stopping = true;
+                            break;
+                        }
+                        batch.add(w);
+                    }
+                }
+                try {
+                    commit(batch);
+                } catch (Throwable t) {
+                    // fail the batch but keep the thread, or flush() and close() would wait for it forever
+                    writerLogger.severe(String.format("Error committing %d file(s) %s",batch.size(),t));
+                    for(PendingWrite w: batch)
+                    {
+                        done(w, false);
+                    }
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void commit(List<PendingWrite> batch) {
+        boolean sync = commitMillis > 0;
+        StorageCommitEvent commitEvent = FlightRecorder.isInitialized() ? new StorageCommitEvent() : null;
+        if(commitEvent != null)
+        {
+            commitEvent.begin();
+        }
+        List<PendingWrite> written = new ArrayList<>(batch.size());
+        List<Path> temps = new ArrayList<>(batch.size());
+        List<FileChannel> channels = new ArrayList<>(batch.size());
+        long bytes = 0;
+        try {
+            for(PendingWrite w: batch)
+            {
+                StorageWriteEvent event = FlightRecorder.isInitialized() ? new StorageWriteEvent() : null;
+                if(event != null)
+                {
+                    event.begin();
+                }
+                Path tmp = w.source != null ? w.source : FileStorage.tempPath(w.target);
+                FileChannel ch = null;
+                boolean success = false;
+                long size = w.held();
+                try {
+                    if(w.source != null)
+                    {
+                        // already written; only opened to be fsync'd
+                        size = Files.size(tmp);
+                        if(sync)
+                        {
+                            ch = FileChannel.open(tmp, StandardOpenOption.WRITE);
+                        }
+                    } else {
+                        ch = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                        ByteBuffer buf = ByteBuffer.wrap(w.data);
+                        while (buf.hasRemaining())
+                        {
+                            ch.write(buf);
+                        }
+                    }
+                    success = true;
+                } catch (IOException e) {
+                    writerLogger.warning(String.format("Error saving %s %s",w.target,e.getMessage()));
+                    closeQuietly(ch);
+                    deleteQuietly(tmp);
+                    done(w, false);
+                }
+                if(success)
+                {
+                    if(sync)
+                    {
+                        channels.add(ch);
+                    } else {
+                        closeQuietly(ch);
+                    }
+                    written.add(w);
+                    temps.add(tmp);
+                    bytes += size;
+                }
+                if(event != null && event.shouldCommit())
+                {
+                    event.kind = w.kind;
+                    event.path = w.target.toString();
+                    event.bytes = size;
+                    event.success = success;
+                    event.commit();
+                }
+            }
+            if(sync)
+            {
+                for(FileChannel ch: channels)
+                {
+                    ch.force(true);
+                }
+            }
+        } catch (IOException e) {
+            writerLogger.warning(String.format("Error syncing %d file(s) %s",written.size(),e.getMessage()));
+            for(int i=0;i<written.size();i++)
+            {
+                deleteQuietly(temps.get(i));
+                done(written.get(i), false);
+            }
+            written.clear();
+        } finally {
+            for(FileChannel ch: channels)
+            {
+                closeQuietly(ch);
+            }
+        }
+
+        Set<Path> dirs = new HashSet<>();
+        List<PendingWrite> moved = new ArrayList<>(written.size());
+        for(int i=0;i<written.size();i++)
+        {
+            PendingWrite w = written.get(i);
+            try {
+                Files.move(temps.get(i), w.target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                if(w.target.getParent() != null)
+                {
+                    dirs.add(w.target.getParent());
+                }
+                moved.add(w);
+            } catch (IOException e) {
+                writerLogger.warning(String.format("Error saving %s %s",w.target,e.getMessage()));
+                deleteQuietly(temps.get(i));
+                done(w, false);
+            }
+        }
+        if(sync)
+        {
+            for(Path dir: dirs)
+            {
+                try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+                    ch.force(true);
+                } catch (IOException e) {
+                    // not every platform can sync a directory
+                    writerLogger.fine(String.format("Could not sync %s %s",dir,e.getMessage()));
+                }
+            }
+        }
+        for(PendingWrite w: moved)
+        {
+            done(w, true);
+        }
+        if(commitEvent != null && commitEvent.shouldCommit())
+        {
+            commitEvent.files = moved.size();
+            commitEvent.bytes = bytes;
+            commitEvent.synced = sync;
+            commitEvent.commit();
+        }
+    }
+
+    private static void closeQuietly(FileChannel ch) {
+        if(ch == null)
+        {
+            return;
+        }
+        try {
+            ch.close();
+        } catch (IOException e) {
+            writerLogger.fine("Error closing channel: " + e.getMessage());
+        }
+    }
+
+    private static void deleteQuietly(Path p) {
+        try {
+            Files.deleteIfExists(p);
+        } catch (IOException e) {
+            writerLogger.fine(String.format("Error deleting %s %s",p,e.getMessage()));
+        }
+    }
+}
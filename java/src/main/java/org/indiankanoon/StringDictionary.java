@@ -0,0 +1,83 @@
+package org.indiankanoon;
+
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.io.*;
+import java.util.*;
+import java.nio.file.*;
+
+/**
+ * Append-only id dictionary backed by a text file with one entry per line;
+ * the id of an entry is its line number.
+ */
+public class StringDictionary implements Closeable
+{
+    private final Map<String,Integer> ids = new HashMap<>();
+    private final List<String> values = new ArrayList<>();
+    private final Writer writer;
+
+    public StringDictionary(Path file, boolean writable) throws IOException
+    {
+        if(Files.exists(file))
+        {
+            byte[] data = Files.readAllBytes(file);
+            int end = data.length;
+            while (end > 0 && data[end - 1] != '\n')
+            {
+                end--;
+            }
+            // a line without its newline was cut short by a crash; the id it
+            // was given was never recorded anywhere, so drop it
+            if(end < data.length && writable)
+            {
+                try(FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE))
+                {
+                    ch.truncate(end);
+                }
+            }
+            int start = 0;
+            for(int i=0;i<end;i++)
+            {
+                if(data[i] == '\n')
+                {
+                    String line = new String(data, start, i - start, StandardCharsets.UTF_8);
+                    ids.putIfAbsent(line, values.size());
+                    values.add(line);
+                    start = i + 1;
+                }
+            }
+        }
+        this.writer = writable ? Files.newBufferedWriter(file,StandardCharsets.UTF_8,StandardOpenOption.CREATE,StandardOpenOption.APPEND) : null;
+    }
+
+    public synchronized int getId(String value) throws IOException {
+        String v = value.replace('\n', ' ').replace('\r', ' ');
+        Integer id = ids.get(v);
+        if(id == null)
+        {
+            id = values.size();
+            writer.write(v);
+            writer.write('\n');
+            writer.flush();
+            ids.put(v, id);
+            values.add(v);
+        }
+        return id;
+    }
+
+    public Integer lookupId(String value) {
+        return ids.get(value);
+    }
+
+    public String getValue(int id) {
+        return id >= 0 && id < values.size() ? values.get(id) : "";
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(writer != null)
+        {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package org.indiankanoon;
+
+import com.opencsv.CSVWriter;
+import java.nio.charset.StandardCharsets;
+import java.io.*;
+import java.util.*;
+import java.nio.file.*;
+
+/**
+ * Per-query toc.csv writer. Kept in its own class so that opencsv is only
+ * loaded by runs that actually write a TOC (not by -d, -n or -x runs).
+ */
+class TocWriter implements Closeable
+{
+    private static final String[] HEADER = {"position","docid","date","court","title"};
+
+    private final CSVWriter csvWriter;
+
+    public TocWriter(Path tocFile) throws IOException {
+        Writer handler = Files.newBufferedWriter(tocFile,StandardCharsets.UTF_8,StandardOpenOption.CREATE,StandardOpenOption.WRITE,StandardOpenOption.TRUNCATE_EXISTING);
+        this.csvWriter = new CSVWriter(handler);
+        this.csvWriter.writeNext(HEADER);
+    }
+
+    public void writeRow(String[] row) {
+        this.csvWriter.writeNext(row);
+    }
+
+    public void flush() throws IOException {
+        this.csvWriter.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.csvWriter.close();
+    }
+
+    /**
+     * Concatenates tocs written by separate TocWriters into target, keeping
+     * only the first header. Missing parts are skipped.
+     */
+    static void merge(List<Path> parts, Path target) throws IOException {
+        Path tmp = Files.createTempFile(target.getParent(), "toc", ".tmp");
+        try(OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp)))
+        {
+            boolean first = true;
+            for(Path part: parts)
+            {
+                if(!Files.exists(part))
+                {
+                    continue;
+                }
+                try(InputStream in = new BufferedInputStream(Files.newInputStream(part)))
+                {
+                    // the header is one line, titles only come after it
+                    int c = first ? '\n' : in.read();
+                    while (c != '\n' && c != -1)
+                    {
+                        c = in.read();
+                    }
+                    in.transferTo(out);
+                }
+                first = false;
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
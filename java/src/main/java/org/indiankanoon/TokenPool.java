@@ -0,0 +1,248 @@
+package org.indiankanoon;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+import java.util.logging.*;
+import java.io.*;
+import java.util.*;
+import java.nio.file.*;
+import java.util.regex.Pattern;
+
+/**
+ * The API tokens a run spreads its requests over. Each token has its own
+ * rate limit, optional request quota and error counts. A token that gets
+ * quota errors (or keeps failing) is quarantined for a while, twice as
+ * long each time it happens again, and the other tokens carry on.
+ */
+public class TokenPool
+{
+    private static final Logger tokenLogger = Logger.getLogger("tokens");
+    private static final Pattern QUOTA_ERROR = Pattern.compile("(?i)quota|limit exceeded|too many requests|insufficient|balance");
+    private static final int MAX_CONSECUTIVE_ERRORS = 5;
+
+    public static final class Token
+    {
+        public final int index;
+        final String header;
+        final RateLimiter limiter;
+        public final long quota;
+        public long used = 0;
+        public long errors = 0;
+        public int consecutiveErrors = 0;
+        public int quarantines = 0;
+        public long quarantinedUntil = 0;
+
+        public Token(int index, String token, double rate, long quota)
+        {
+            this.index = index;
+            this.header = String.format("Token %s", token);
+            this.limiter = rate > 0 ? new RateLimiter(rate) : null;
+            this.quota = quota;
+        }
+
+        public String label() {
+            return "#" + index;
+        }
+
+        public long remaining() {
+            return quota > 0 ? quota - used : Long.MAX_VALUE - used;
+        }
+    }
+
+    private final List<Token> tokens;
+    private final boolean byBudget;
+    private final long quarantineMillis;
+    private int next = 0;
+
+    public TokenPool(List<Token> tokens, boolean byBudget, long quarantineMillis)
+    {
+        this.tokens = tokens;
+        this.byBudget = byBudget;
+        this.quarantineMillis = quarantineMillis;
+    }
+
+    /**
+     * Tokens from -s (comma separated) and from a token file with lines of
+     * TOKEN [RATE [QUOTA]]; RATE defaults to defaultRate, QUOTA (requests
+     * for this run) to none.
+     */
+    public static TokenPool load(String tokenArg, String tokenFile, double defaultRate, boolean byBudget, long quarantineMillis) throws IOException {
+        List<Token> tokens = new ArrayList<>();
+        if(tokenArg != null)
+        {
+            for(String t: tokenArg.split(","))
+            {
+                if(!t.isBlank())
+                {
+                    tokens.add(new Token(tokens.size() + 1, t.trim(), defaultRate, 0));
+                }
+            }
+        }
+        if(tokenFile != null)
+        {
+            for(String line: Files.readAllLines(Paths.get(tokenFile), StandardCharsets.UTF_8))
+            {
+                line = line.trim();
+                if(line.isEmpty() || line.startsWith("#"))
+                {
+                    continue;
+                }
+                String[] parts = line.split("\\s+");
+                try {
+                    double rate = parts.length > 1 ? Double.parseDouble(parts[1]) : defaultRate;
+                    long quota = parts.length > 2 ? Long.parseLong(parts[2]) : 0;
+                    tokens.add(new Token(tokens.size() + 1, parts[0], rate, quota));
+                } catch (NumberFormatException e) {
+                    throw new IOException(String.format("Bad line in %s: %s", tokenFile, e.getMessage()));
+                }
+            }
+        }
+        if(tokens.isEmpty())
+        {
+            throw new IOException("no API token given");
+        }
+        return new TokenPool(tokens, byBudget, quarantineMillis);
+    }
+
+    public int size() {
+        return tokens.size();
+    }
+
+    /**
+     * Picks a usable token (see pick) and waits for its rate limit. If
+     * every token is quarantined, waits for the first to come back, but
+     * not past the current Deadline.
+     */
+    public Token acquire() throws IOException, InterruptedException {
+        Token token;
+        long delay = 0;
+        while (true)
+        {
+            long wakeAt;
+            synchronized (this)
+            {
+                token = pick(System.currentTimeMillis());
+                if(token != null)
+                {
+                    token.used++;
+                    // taken under the lock, so the next pick sees this token as busy
+                    delay = token.limiter != null ? token.limiter.reserve() : 0;
+                    break;
+                }
+                wakeAt = Long.MAX_VALUE;
+                for(Token t: tokens)
+                {
+                    if(t.remaining() > 0)
+                    {
+                        wakeAt = Math.min(wakeAt, t.quarantinedUntil);
+                    }
+                }
+            }
+            if(wakeAt == Long.MAX_VALUE)
+            {
+                throw new IOException("all API tokens have used up their quota");
+            }
+            Deadline deadline = Deadline.current();
+            long wait = Math.max(1, wakeAt - System.currentTimeMillis());
+            if(deadline != null && deadline.remainingMillis() < wait)
+            {
+                throw new IOException("all API tokens are quarantined");
+            }
+            tokenLogger.warning(String.format("All API tokens are quarantined, waiting %d s", wait / 1000));
+            Thread.sleep(wait);
+        }
+        if(delay > 0)
+        {
+            TimeUnit.NANOSECONDS.sleep(delay);
+        }
+        return token;
+    }
+
+    /**
+     * Of the tokens that are neither quarantined nor out of quota, picks
+     * the one whose rate limit frees up soonest, so a slow token never
+     * holds up a request another token could make now. Among tokens that
+     * are free now, it goes round robin, or by most requests left.
+     */
+    public Token pick(long now) {
+        Token best = null;
+        long bestDelay = 0;
+        for(int i=0;i<tokens.size();i++)
+        {
+            Token t = tokens.get((next + i) % tokens.size());
+            if(t.quarantinedUntil > now || t.remaining() <= 0)
+            {
+                continue;
+            }
+            long delay = t.limiter != null ? t.limiter.delay() : 0;
+            if(best == null || delay < bestDelay
+                    || (delay == 0 && bestDelay == 0 && byBudget && t.remaining() > best.remaining()))
+            {
+                best = t;
+                bestDelay = delay;
+            }
+        }
+        if(best != null)
+        {
+            next = (tokens.indexOf(best) + 1) % tokens.size();
+        }
+        return best;
+    }
+
+    /**
+     * Records the outcome of a request made with token; status is -1 if
+     * there was no response, and body null if it was not read as text.
+     */
+    public synchronized void report(Token token, int status, boolean answered, String body) {
+        String errmsg = errmsg(body);
+        boolean quotaError = status == 429 || status == 402 || status == 403
+                || (errmsg != null && QUOTA_ERROR.matcher(errmsg).find());
+        boolean failed = quotaError || status < 0 || status >= 500 || !answered;
+        if(!failed)
+        {
+            token.consecutiveErrors = 0;
+            return;
+        }
+        token.errors++;
+        token.consecutiveErrors++;
+        // with a single token there is nothing to fall back on; the retries in callApi deal with it
+        if(tokens.size() > 1 && (quotaError || token.consecutiveErrors >= MAX_CONSECUTIVE_ERRORS))
+        {
+            long millis = quarantineMillis << Math.min(token.quarantines, 5);
+            token.quarantines++;
+            token.consecutiveErrors = 0;
+            token.quarantinedUntil = System.currentTimeMillis() + millis;
+            tokenLogger.warning(String.format("Quarantining API token %s for %d s after %s (status %d)",
+                    token.label(), millis / 1000, quotaError ? "a quota error" : "repeated errors", status));
+        }
+    }
+
+    /** The errmsg of an API error response, or null if body is not one. */
+    public static String errmsg(String body) {
+        // a doc can mention errmsg or quota anywhere in its text; only the field counts
+        if(body == null || !body.contains("\"errmsg\""))
+        {
+            return null;
+        }
+        try {
+            JSONObject json = new JSONObject(body);
+            return json.has("errmsg") ? json.optString("errmsg") : null;
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    public synchronized void logSummary() {
+        if(tokens.size() < 2)
+        {
+            return;
+        }
+        for(Token t: tokens)
+        {
+            tokenLogger.info(String.format("API token %s: %d request(s), %d error(s), quarantined %d time(s)",
+                    t.label(), t.used, t.errors, t.quarantines));
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.ikapi;
+
+import java.util.concurrent.*;
+
+import junit.framework.TestCase;
+
+import org.indiankanoon.ByteBudget;
+
+/**
+ * Unit tests for ByteBudget reservations and scopes.
+ */
+public class ByteBudgetTest
+    extends TestCase
+{
+    public void testScopeReleasesOnClose()
+    {
+        ByteBudget budget = new ByteBudget(100, 10);
+        try (ByteBudget.Scope scope = budget.enter())
+        {
+            assertTrue(budget.tryReserve(60));
+            scope.add(60);
+            assertFalse(budget.tryReserve(60));
+            // a joined scope leaves its bytes to the outer one
+            try (ByteBudget.Scope inner = budget.enter())
+            {
+                assertTrue(budget.tryReserve(30));
+                inner.add(30);
+            }
+            assertEquals(90, budget.used());
+            assertEquals(90, scope.held());
+        }
+        assertEquals(0, budget.used());
+    }
+
+    public void testNoWaitWhileHolding() throws Exception
+    {
+        ByteBudget budget = new ByteBudget(100, 10);
+        assertTrue(budget.tryReserve(100));
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try
+        {
+            // holding bytes already, so it goes over the budget rather than wait
+            Future<Long> holding = pool.submit(() -> {
+                try (ByteBudget.Scope scope = budget.enter())
+                {
+                    budget.force(10);
+                    scope.add(10);
+                    budget.reserve(50, scope);
+                    scope.add(50);
+                    return budget.used();
+                }
+            });
+            assertEquals(Long.valueOf(160), holding.get(10, TimeUnit.SECONDS));
+            assertEquals(100, budget.used());
+
+            // holding nothing, so it waits for the bytes to be released
+            Future<?> waiting = pool.submit(() -> {
+                try (ByteBudget.Scope scope = budget.enter())
+                {
+                    budget.reserve(50, scope);
+                    scope.add(50);
+                }
+                return null;
+            });
+            Thread.sleep(200);
+            assertFalse(waiting.isDone());
+            budget.release(100);
+            waiting.get(10, TimeUnit.SECONDS);
+            assertEquals(0, budget.used());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
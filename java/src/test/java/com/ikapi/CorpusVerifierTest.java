@@ -0,0 +1,88 @@
+package com.ikapi;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+
+import junit.framework.TestCase;
+
+import org.indiankanoon.CorpusVerifier;
+
+/**
+ * Unit tests for the doc json checks of CorpusVerifier and the repair list
+ * it writes.
+ */
+public class CorpusVerifierTest
+    extends TestCase
+{
+    private Path dir;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        dir = Files.createTempDirectory("verify");
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        try (Stream<Path> files = Files.walk(dir))
+        {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+            {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private CorpusVerifier.DocCheck check(String json) throws Exception
+    {
+        Path file = dir.resolve("check.json");
+        Files.write(file, json.getBytes(StandardCharsets.UTF_8));
+        return CorpusVerifier.check(file);
+    }
+
+    public void testBraceDepth() throws Exception
+    {
+        assertTrue(check("{\"tid\": 1, \"doc\": \"<p>x</p>\"}").complete);
+        assertTrue(check("  {\"a\": {\"b\": [1, {\"c\": \"}\"}]}}\n").complete);
+        assertTrue(check("{\"doc\": \"a \\\" } quote\"}").complete);
+        // cut off inside a nested object that happens to end with a '}'
+        assertFalse(check("{\"a\": {\"b\": 1}").complete);
+        // cut off inside a string holding a '}'
+        assertFalse(check("{\"doc\": \"text }").complete);
+        assertFalse(check("{\"a\": 1}}").complete);
+        assertFalse(check("{\"a\": 1} {").complete);
+        assertFalse(check("").complete);
+        assertFalse(check("[1, 2]").complete);
+    }
+
+    public void testCourtCopy() throws Exception
+    {
+        assertTrue(check("{\"tid\": 1, \"courtcopy\" : true, \"doc\": \"x\"}").courtCopy);
+        assertTrue(check("{\"courtcopy\":true}").courtCopy);
+        assertFalse(check("{\"courtcopy\": false}").courtCopy);
+        assertFalse(check("{\"doc\": \"\\\"courtcopy\\\": true\"}").courtCopy);
+        assertFalse(check("{\"doc\": {\"courtcopy\": true}}").courtCopy);
+        assertFalse(check("{\"title\": \"courtcopy\", \"x\": true}").courtCopy);
+        assertFalse(check("{\"xcourtcopy\": true}").courtCopy);
+    }
+
+    public void testRepairList() throws Exception
+    {
+        Path docs = dir.resolve("data").resolve("murder");
+        Files.createDirectories(docs);
+        Files.write(docs.resolve("1.json"), "{\"tid\": 1, \"courtcopy\": true}".getBytes(StandardCharsets.UTF_8));
+        Files.write(docs.resolve("2.json"), "{\"tid\": 2, \"doc\": \"cut".getBytes(StandardCharsets.UTF_8));
+        Files.write(docs.resolve("3.json"), "{\"tid\": 3, \"courtcopy\": true}".getBytes(StandardCharsets.UTF_8));
+        Files.write(docs.resolve("3_orignal.pdf"), new byte[] {1});
+        Path repair = dir.resolve("repair.txt");
+
+        assertEquals(2, CorpusVerifier.verify(dir.resolve("data"), 2, true, repair));
+        List<String> problems = new ArrayList<>(Files.readAllLines(repair, StandardCharsets.UTF_8));
+        Collections.sort(problems);
+        assertEquals(Arrays.asList("1\t" + docs + "\t" + CorpusVerifier.MISSING_ORIGINAL,
+                                   "2\t" + docs + "\t" + CorpusVerifier.TRUNCATED), problems);
+    }
+}
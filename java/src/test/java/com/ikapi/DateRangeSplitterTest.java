@@ -0,0 +1,72 @@
+package com.ikapi;
+
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.*;
+
+import junit.framework.TestCase;
+
+import org.indiankanoon.DateRangeSplitter;
+import org.indiankanoon.DateSlice;
+
+/**
+ * Unit tests for DateRangeSplitter.
+ */
+public class DateRangeSplitterTest
+    extends TestCase
+{
+    /** 3 results a day, except none in 2001 and 500 on 1 Jan 2005 */
+    private static long count(LocalDate from, LocalDate to)
+    {
+        long n = 0;
+        for (LocalDate d = from; !d.isAfter(to); d = d.plusDays(1))
+        {
+            n += d.getYear() == 2001 ? 0 : d.equals(LocalDate.of(2005, 1, 1)) ? 500 : 3;
+        }
+        return n;
+    }
+
+    public void testSlicesCoverTheRangeInOrder()
+    {
+        LocalDate from = LocalDate.of(2000, 1, 1);
+        LocalDate to = LocalDate.of(2006, 12, 31);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        List<DateSlice> slices;
+        try
+        {
+            slices = pool.invoke(new DateRangeSplitter(from, to, 1000, DateRangeSplitterTest::count));
+        } finally {
+            pool.shutdown();
+        }
+
+        long total = 0;
+        LocalDate next = from;
+        for (DateSlice slice : slices)
+        {
+            assertFalse(slice.from.isBefore(next));
+            assertFalse(slice.to.isBefore(slice.from));
+            assertEquals(count(slice.from, slice.to), slice.found);
+            // only a single day may go over the target
+            assertTrue(slice.found <= 1000 || slice.from.equals(slice.to));
+            assertTrue(slice.found > 0);
+            total += slice.found;
+            next = slice.to.plusDays(1);
+        }
+        assertEquals(count(from, to), total);
+    }
+
+    public void testFailedProbeGivesNoSlices()
+    {
+        LocalDate from = LocalDate.of(2000, 1, 1);
+        LocalDate to = LocalDate.of(2006, 12, 31);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try
+        {
+            // a failed count in 2003 must not read as a year without results
+            assertNull(pool.invoke(new DateRangeSplitter(from, to, 1000,
+                    (f, t) -> f.getYear() <= 2003 && t.getYear() >= 2003 ? -1 : count(f, t))));
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.ikapi;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+import junit.framework.TestCase;
+
+import org.indiankanoon.FileStorage;
+import org.indiankanoon.OriginalsQueue;
+
+/**
+ * Unit tests for saving originals through FileStorage and its writer.
+ */
+public class FileStorageTest
+    extends TestCase
+{
+    private static final String ORIGDOC = "{\"Content-Type\": \"application/pdf\", \"doc\": \"aGVsbG8=\"}";
+
+    private Path dir;
+    private FileStorage storage;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        dir = Files.createTempDirectory("storage");
+        storage = new FileStorage(dir.toString());
+        storage.startWriter(1, 4, 0, null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        storage.close();
+        try (Stream<Path> files = Files.walk(dir))
+        {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+            {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private Path body(int docId) throws Exception
+    {
+        Path body = dir.resolve("body-" + docId + ".json");
+        Files.write(body, ORIGDOC.getBytes(StandardCharsets.UTF_8));
+        return body;
+    }
+
+    public void testSaveOriginal() throws Exception
+    {
+        Path body = body(1);
+        assertEquals(Long.valueOf(ORIGDOC.length()), storage.saveOriginal(body, dir.resolve("1_original").toString()).get(10, TimeUnit.SECONDS));
+        assertEquals("hello", new String(Files.readAllBytes(dir.resolve("1_original.pdf")), StandardCharsets.UTF_8));
+        assertFalse(Files.exists(body));
+    }
+
+    public void testFailedWriteIsRetried() throws Exception
+    {
+        // the writer cannot move it into a directory that is not there
+        String missing = dir.resolve("missing").resolve("1_original").toString();
+        assertEquals(Long.valueOf(-1), storage.saveOriginal(body(1), missing).get(10, TimeUnit.SECONDS));
+
+        Path journals = dir.resolve("originals");
+        Files.createDirectories(journals);
+        try (OriginalsQueue queue = new OriginalsQueue(journals, "a", 60_000, 1, 0, 0, (docId, path) -> {
+            try
+            {
+                return storage.saveOriginal(body(docId), path);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }))
+        {
+            queue.enqueue(1, missing);
+            queue.enqueue(2, dir.resolve("2_original").toString());
+        }
+        // only the original that could not be written is left for the next run
+        assertTrue(Files.exists(dir.resolve("2_original.pdf")));
+        assertEquals(Arrays.asList("1\t" + missing), Files.readAllLines(journals.resolve("pending-a.log"), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,111 @@
+package com.ikapi;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+import org.json.JSONObject;
+
+import junit.framework.TestCase;
+
+import org.indiankanoon.FragmentStore;
+
+/**
+ * Unit tests for FragmentStore recovery after a crash part way through
+ * writing fragments.jsonl or fragments.idx.
+ */
+public class FragmentStoreTest
+    extends TestCase
+{
+    private Path dir;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        dir = Files.createTempDirectory("fragments");
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        Files.deleteIfExists(dir.resolve("fragments.jsonl"));
+        Files.deleteIfExists(dir.resolve("fragments.idx"));
+        Files.delete(dir);
+    }
+
+    private static JSONObject fragment(String text)
+    {
+        JSONObject fragment = new JSONObject();
+        fragment.put("headline", text);
+        return fragment;
+    }
+
+    private void writeSample() throws Exception
+    {
+        try (FragmentStore store = new FragmentStore(dir))
+        {
+            assertTrue(store.claim(1, "murder"));
+            store.append(1, "murder", fragment("first"));
+            assertTrue(store.claim(2, "bail"));
+            store.append(2, "bail", fragment("second"));
+        }
+    }
+
+    private List<String> dataLines() throws Exception
+    {
+        return Files.readAllLines(dir.resolve("fragments.jsonl"), StandardCharsets.UTF_8);
+    }
+
+    public void testDonePairsAreSkipped() throws Exception
+    {
+        writeSample();
+        try (FragmentStore store = new FragmentStore(dir))
+        {
+            assertFalse(store.claim(1, "murder"));
+            assertFalse(store.claim(2, "bail"));
+            assertTrue(store.claim(1, "bail"));
+        }
+        List<String> idx = Files.readAllLines(dir.resolve("fragments.idx"), StandardCharsets.UTF_8);
+        assertEquals(2, idx.size());
+        String[] second = idx.get(1).split("\t");
+        assertEquals("2", second[0]);
+        assertEquals(String.valueOf(dataLines().get(0).length() + 1), second[1]);
+    }
+
+    public void testPartialIndexLineIsDropped() throws Exception
+    {
+        writeSample();
+        long idxSize = Files.size(dir.resolve("fragments.idx"));
+        Files.write(dir.resolve("fragments.idx"), "3\t99".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        try (FragmentStore store = new FragmentStore(dir))
+        {
+            assertEquals(idxSize, Files.size(dir.resolve("fragments.idx")));
+            assertTrue(store.claim(3, "theft"));
+            store.append(3, "theft", fragment("third"));
+        }
+        List<String> idx = Files.readAllLines(dir.resolve("fragments.idx"), StandardCharsets.UTF_8);
+        assertEquals(3, idx.size());
+        assertTrue(idx.get(2).startsWith("3\t"));
+        assertEquals(3, dataLines().size());
+    }
+
+    public void testIndexPastEndOfDataIsDropped() throws Exception
+    {
+        writeSample();
+        // the index made it to disk but the data of the second fragment did not
+        List<String> data = dataLines();
+        Files.write(dir.resolve("fragments.jsonl"), (data.get(0) + "\n" + data.get(1).substring(0, 5)).getBytes(StandardCharsets.UTF_8));
+        try (FragmentStore store = new FragmentStore(dir))
+        {
+            assertFalse(store.claim(1, "murder"));
+            assertTrue(store.claim(2, "bail"));
+            store.append(2, "bail", fragment("again"));
+        }
+        data = dataLines();
+        assertEquals(2, data.size());
+        assertTrue(data.get(1).contains("\"again\""));
+        List<String> idx = Files.readAllLines(dir.resolve("fragments.idx"), StandardCharsets.UTF_8);
+        assertEquals(2, idx.size());
+        assertEquals(String.valueOf(data.get(1).length() + 1), idx.get(1).split("\t")[2]);
+    }
+}
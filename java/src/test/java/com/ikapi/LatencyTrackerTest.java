@@ -0,0 +1,43 @@
+package com.ikapi;
+
+import junit.framework.TestCase;
+
+import org.indiankanoon.LatencyTracker;
+
+/**
+ * Unit tests for the per endpoint kind windows of LatencyTracker.
+ */
+public class LatencyTrackerTest
+    extends TestCase
+{
+    public void testEachKindHasItsOwnWindow()
+    {
+        LatencyTracker latencies = new LatencyTracker();
+        for (int i = 1; i <= 100; i++)
+        {
+            latencies.record("search", 1000 + i);
+            latencies.record("doc", i);
+        }
+        latencies.record("origdoc", 5);
+
+        assertEquals(1096, latencies.p95("search"));
+        assertEquals(96, latencies.p95("doc"));
+        // too few samples to hedge on
+        assertEquals(-1, latencies.p95("origdoc"));
+        assertEquals(-1, latencies.p95("docfragment"));
+    }
+
+    public void testOldSamplesLeaveTheWindow()
+    {
+        LatencyTracker latencies = new LatencyTracker();
+        for (int i = 0; i < 512; i++)
+        {
+            latencies.record("doc", 10_000);
+        }
+        for (int i = 0; i < 512; i++)
+        {
+            latencies.record("doc", 10);
+        }
+        assertEquals(10, latencies.p95("doc"));
+    }
+}
@@ -0,0 +1,200 @@
+package com.ikapi;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.stream.*;
+
+import junit.framework.TestCase;
+
+import org.indiankanoon.LeaseManager;
+
+/**
+ * Unit tests for LeaseManager, including several JVMs sharing one lease
+ * directory with one of them dying while it holds a lease.
+ */
+public class LeaseManagerTest
+    extends TestCase
+{
+    private static final int UNITS = 60;
+
+    private Path dir;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        dir = Files.createTempDirectory("leases");
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        try (Stream<Path> files = Files.walk(dir))
+        {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+            {
+                Files.delete(file);
+            }
+        }
+    }
+
+    public void testRunIdScopesMarkers() throws Exception
+    {
+        String unit = LeaseManager.unitId("q", "murder");
+        try (LeaseManager first = new LeaseManager(dir, "run1", "a", 60_000))
+        {
+            assertTrue(first.tryClaim(unit));
+            first.complete(unit);
+            assertFalse(first.tryClaim(unit));
+            first.markEnd("murder", 20);
+            first.markEnd("murder", 30);
+            assertEquals(20, first.getEnd("murder"));
+        }
+        try (LeaseManager second = new LeaseManager(dir, "run2", "a", 60_000))
+        {
+            assertFalse(second.isDone(unit));
+            assertEquals(Integer.MAX_VALUE, second.getEnd("murder"));
+            assertTrue(second.tryClaim(unit));
+        }
+    }
+
+    public void testLiveLeaseIsNotTaken() throws Exception
+    {
+        String unit = LeaseManager.unitId("q", "bail");
+        try (LeaseManager a = new LeaseManager(dir, "run", "a", 60_000);
+             LeaseManager b = new LeaseManager(dir, "run", "b", 60_000))
+        {
+            assertTrue(a.tryClaim(unit));
+            assertFalse(b.tryClaim(unit));
+            a.release(unit);
+            assertTrue(b.tryClaim(unit));
+        }
+    }
+
+    public void testExpiredLeaseIsReclaimedAndOwnerNotices() throws Exception
+    {
+        String unit = LeaseManager.unitId("q", "theft");
+        Path lease = dir.resolve(unit + ".lease");
+        try (LeaseManager a = new LeaseManager(dir, "run", "a", 60_000);
+             LeaseManager b = new LeaseManager(dir, "run", "b", 60_000))
+        {
+            assertTrue(a.tryClaim(unit));
+            Files.setLastModifiedTime(lease, FileTime.fromMillis(System.currentTimeMillis() - 120_000));
+            assertTrue(b.tryClaim(unit));
+            String token = new String(Files.readAllBytes(lease), StandardCharsets.UTF_8);
+            assertTrue(token.startsWith("b "));
+
+            // a's heartbeat sees someone else's token and gives the unit up
+            // without touching b's lease
+            a.renew();
+            assertFalse(a.holds(unit));
+            a.release(unit);
+            assertEquals(token, new String(Files.readAllBytes(lease), StandardCharsets.UTF_8));
+            assertTrue(b.holds(unit));
+            b.renew();
+            assertTrue(b.holds(unit));
+        }
+        // no leftovers from moving the expired lease aside
+        try (Stream<Path> files = Files.list(dir))
+        {
+            assertEquals(0, files.filter(f -> f.getFileName().toString().endsWith(".expired")).count());
+        }
+    }
+
+    public void testNodesShareWorkAcrossJvms() throws Exception
+    {
+        List<Process> nodes = new ArrayList<>();
+        nodes.add(startNode("crash", true));
+        nodes.add(startNode("n1", false));
+        nodes.add(startNode("n2", false));
+        for (Process node : nodes)
+        {
+            assertTrue("node did not finish", node.waitFor(120, java.util.concurrent.TimeUnit.SECONDS));
+        }
+        assertEquals(0, nodes.get(1).exitValue());
+        assertEquals(0, nodes.get(2).exitValue());
+
+        // every unit done exactly once, including the one the crashed node held
+        for (int i = 0; i < UNITS; i++)
+        {
+            String prefix = "work-" + i + "-";
+            try (Stream<Path> files = Files.list(dir))
+            {
+                assertEquals("unit " + i, 1, files.filter(f -> f.getFileName().toString().startsWith(prefix)).count());
+            }
+        }
+    }
+
+    private Process startNode(String name, boolean crash) throws IOException
+    {
+        List<String> cmd = new ArrayList<>(Arrays.asList(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"),
+                Node.class.getName(), dir.toString(), name));
+        if (crash)
+        {
+            cmd.add("crash");
+        }
+        return new ProcessBuilder(cmd).inheritIO().start();
+    }
+
+    /**
+     * One node of the multi-JVM test: works through UNITS units, leaving a
+     * work-UNIT-NODE file for each it does. With "crash" it halts right
+     * after claiming unit 30, leaving its lease behind.
+     */
+    public static class Node
+    {
+        public static void main(String[] args) throws Exception
+        {
+            Path dir = Paths.get(args[0]);
+            String name = args[1];
+            boolean crash = args.length > 2;
+            LeaseManager leases = new LeaseManager(dir, "run", name, 2000);
+            Deque<Integer> heldElsewhere = new ArrayDeque<>();
+            for (int i = 0; i < UNITS; i++)
+            {
+                if (!work(leases, dir, name, i, crash) && !leases.isDone(unitOf(i)))
+                {
+                    heldElsewhere.add(i);
+                }
+            }
+            while (!heldElsewhere.isEmpty())
+            {
+                Thread.sleep(leases.retryInterval());
+                for (int k = heldElsewhere.size(); k > 0; k--)
+                {
+                    int i = heldElsewhere.poll();
+                    if (!work(leases, dir, name, i, crash) && !leases.isDone(unitOf(i)))
+                    {
+                        heldElsewhere.add(i);
+                    }
+                }
+            }
+            leases.close();
+        }
+
+        private static String unitOf(int i)
+        {
+            return LeaseManager.unitId("q", "query" + i);
+        }
+
+        private static boolean work(LeaseManager leases, Path dir, String name, int i, boolean crash) throws Exception
+        {
+            if (!leases.tryClaim(unitOf(i)))
+            {
+                return false;
+            }
+            if (crash && i == 30)
+            {
+                Runtime.getRuntime().halt(1);
+            }
+            Thread.sleep(20);
+            Files.write(dir.resolve("work-" + i + "-" + name), new byte[0]);
+            leases.complete(unitOf(i));
+            return true;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.ikapi;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+
+import junit.framework.TestCase;
+
+import org.indiankanoon.LocalIndex;
+
+/**
+ * Unit tests for building and searching the LocalIndex, its tokeniser and
+ * the varint encoding of its postings.
+ */
+public class LocalIndexTest
+    extends TestCase
+{
+    private Path datadir;
+    private Path indexDir;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        datadir = Files.createTempDirectory("localindex");
+        indexDir = datadir.resolve("localindex");
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        try (Stream<Path> files = Files.walk(datadir))
+        {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+            {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private void writeDoc(String dir, int docId, String title, String court, String date, String html) throws IOException
+    {
+        Path d = datadir.resolve(dir);
+        Files.createDirectories(d);
+        String json = String.format("{\"tid\": %d, \"title\": \"%s\", \"docsource\": \"%s\", \"publishdate\": \"%s\", \"doc\": \"%s\"}",
+                docId, title, court, date, html);
+        Files.write(d.resolve(docId + ".json"), json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private List<String> search(String q) throws IOException
+    {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        try (PrintStream out = new PrintStream(buf, true, "UTF-8"))
+        {
+            LocalIndex.search(indexDir, q, out);
+        }
+        String text = new String(buf.toByteArray(), StandardCharsets.UTF_8);
+        List<String> docIds = new ArrayList<>();
+        for (String line : text.split("\n"))
+        {
+            if (!line.isEmpty())
+            {
+                docIds.add(line.split("\t")[0]);
+            }
+        }
+        return docIds;
+    }
+
+    private void writeSample() throws IOException
+    {
+        writeDoc("cheque", 101, "A v. B", "Delhi High Court", "2019-03-04", "<p>cheque bounce under section 138</p>");
+        writeDoc("cheque/1", 102, "C v. D", "Supreme Court of India", "2015-07-08", "<b>Cheque</b> dishonour &amp; bail");
+        writeDoc("murder", 103, "State v. E", "Delhi High Court", "2001-01-01", "<div>murder</div> AT&T bail");
+        // the same doc saved under a second query is indexed once
+        writeDoc("murder/1", 101, "A v. B", "Delhi High Court", "2019-03-04", "<p>cheque bounce under section 138</p>");
+        // bookkeeping directories are not docs
+        writeDoc("resultlog", 104, "X", "Delhi High Court", "2019-01-01", "cheque");
+    }
+
+    public void testBuildAndSearch() throws Exception
+    {
+        writeSample();
+        assertEquals(3, LocalIndex.build(datadir, indexDir));
+
+        assertEquals(Arrays.asList("101", "102"), sorted(search("cheque")));
+        assertEquals(Arrays.asList("101"), search("CHEQUE bounce"));
+        assertEquals(Arrays.asList("102", "103"), sorted(search("bail")));
+        assertEquals(Collections.emptyList(), search("cheque murder"));
+        assertEquals(Collections.emptyList(), search("nosuchterm"));
+        assertEquals(Arrays.asList("102"), search("cheque doctypes: supremecourt"));
+        assertEquals(Arrays.asList("101"), search("cheque fromdate: 01-01-2018"));
+        assertEquals(Arrays.asList("102"), search("cheque todate: 31-12-2018 fromdate: 01-01-2010"));
+        // no terms: every doc passing the filters
+        assertEquals(Arrays.asList("101", "103"), sorted(search("doctypes: delhi")));
+
+        // title and docsource are indexed too, tags and entities are not
+        assertEquals(Arrays.asList("103"), search("state"));
+        assertEquals(Arrays.asList("102"), search("supreme"));
+        assertEquals(Collections.emptyList(), search("amp"));
+        assertEquals(Collections.emptyList(), search("div"));
+    }
+
+    public void testTokenise()
+    {
+        Set<String> terms = new TreeSet<>();
+        LocalIndex.tokenise("<a href=\"x\">Bail</a> &amp; &#8217;s AT&T R&D; &&; &; x&nbsp;y", terms);
+        // the '&' of "AT&T" is just a separator, while "&D;" reads as an entity
+        assertEquals(new TreeSet<>(Arrays.asList("bail", "at")), terms);
+
+        terms.clear();
+        LocalIndex.tokenise("Tom & Jerry; salt&pepper;", terms);
+        assertEquals(new TreeSet<>(Arrays.asList("tom", "jerry", "salt")), terms);
+
+        terms.clear();
+        // a ';' too far away does not turn the '&' into an entity
+        LocalIndex.tokenise("a&" + "x".repeat(40) + ";word", terms);
+        assertEquals(new TreeSet<>(Arrays.asList("x".repeat(40), "word")), terms);
+    }
+
+    public void testVarint() throws Exception
+    {
+        int[] values = {0, 1, 127, 128, 300, 16383, 16384, Integer.MAX_VALUE};
+        int[] sizes = {1, 1, 1, 2, 2, 2, 3, 5};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < values.length; i++)
+        {
+            assertEquals(sizes[i], LocalIndex.writeVarint(out, values[i]));
+        }
+        byte[] b = out.toByteArray();
+        // 300 is 0b10_0101100: low group first with the continuation bit set
+        assertEquals((byte) 0xac, b[5]);
+        assertEquals((byte) 0x02, b[6]);
+        ByteBuffer buf = ByteBuffer.wrap(b);
+        for (int v : values)
+        {
+            assertEquals(v, LocalIndex.readVarint(buf));
+        }
+        assertFalse(buf.hasRemaining());
+    }
+
+    public void testPostingsFormat() throws Exception
+    {
+        writeSample();
+        LocalIndex.build(datadir, indexDir);
+        // lexicon.bin: term offset, postings offset, df per term, in term order
+        ByteBuffer lexicon = ByteBuffer.wrap(Files.readAllBytes(indexDir.resolve("lexicon.bin")));
+        ByteBuffer terms = ByteBuffer.wrap(Files.readAllBytes(indexDir.resolve("terms.bin")));
+        ByteBuffer postings = ByteBuffer.wrap(Files.readAllBytes(indexDir.resolve("postings.bin")));
+        assertEquals(0, lexicon.limit() % 20);
+        String previous = "";
+        boolean foundBail = false;
+        for (int i = 0; i < lexicon.limit() / 20; i++)
+        {
+            terms.position((int) lexicon.getLong(i * 20));
+            byte[] t = new byte[terms.getShort()];
+            terms.get(t);
+            String term = new String(t, StandardCharsets.UTF_8);
+            assertTrue(term.compareTo(previous) > 0);
+            previous = term;
+            if (term.equals("bail"))
+            {
+                // two of the three doc numbers, the second as a delta
+                postings.position((int) lexicon.getLong(i * 20 + 8));
+                assertEquals(2, lexicon.getInt(i * 20 + 16));
+                int first = LocalIndex.readVarint(postings);
+                int second = first + LocalIndex.readVarint(postings);
+                assertTrue(first >= 0 && first < second && second < 3);
+                foundBail = true;
+            }
+        }
+        assertTrue(foundBail);
+    }
+
+    private static List<String> sorted(List<String> l)
+    {
+        List<String> copy = new ArrayList<>(l);
+        Collections.sort(copy);
+        return copy;
+    }
+}
@@ -0,0 +1,92 @@
+package com.ikapi;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+
+import junit.framework.TestCase;
+
+import org.indiankanoon.OrigDocDecoder;
+
+/**
+ * Unit tests for decoding origdoc responses with OrigDocDecoder.
+ */
+public class OrigDocDecoderTest
+    extends TestCase
+{
+    private Path dir;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        dir = Files.createTempDirectory("origdoc");
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        try (Stream<Path> files = Files.walk(dir))
+        {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+            {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private OrigDocDecoder decode(String json) throws Exception
+    {
+        Path body = dir.resolve("body.json");
+        Files.write(body, json.getBytes(StandardCharsets.UTF_8));
+        return OrigDocDecoder.decode(body, dir.resolve("orig"));
+    }
+
+    private byte[] decoded() throws Exception
+    {
+        return Files.readAllBytes(dir.resolve("orig"));
+    }
+
+    public void testDecodesTheDocInChunks() throws Exception
+    {
+        // large enough to take several chunks, with a tail that needs padding
+        byte[] pdf = new byte[200_001];
+        new Random(7).nextBytes(pdf);
+        String b64 = Base64.getEncoder().encodeToString(pdf);
+        OrigDocDecoder orig = decode("{\"Content-Type\": \"application/pdf\", \"pages\": [1, {\"a\": \"}\"}], \"doc\": \""
+                + b64.replace("/", "\\/") + "\"}\n");
+        assertTrue(orig.hasDoc);
+        assertNull(orig.errmsg);
+        assertEquals("application/pdf", orig.contentType);
+        assertEquals(pdf.length, orig.size);
+        assertTrue(Arrays.equals(pdf, decoded()));
+    }
+
+    public void testContentTypeMayComeAfterTheDoc() throws Exception
+    {
+        OrigDocDecoder orig = decode("{\"doc\":\"aGVsbG8=\",\"Content-Type\":\"text\\/html\",\"n\":null}");
+        assertEquals("text/html", orig.contentType);
+        assertEquals("hello", new String(decoded(), StandardCharsets.UTF_8));
+    }
+
+    public void testErrmsg() throws Exception
+    {
+        OrigDocDecoder orig = decode("{\"errmsg\": \"No such doc \\u00e9\"}");
+        assertFalse(orig.hasDoc);
+        assertEquals("No such doc \u00e9", orig.errmsg);
+    }
+
+    public void testBadResponses() throws Exception
+    {
+        for (String json : Arrays.asList("", "[1]", "{\"doc\": \"aGVs", "{\"doc\": \"a!!!\"}", "{\"doc\": \"aGVsbG8=\"} x"))
+        {
+            try
+            {
+                decode(json);
+                fail("expected an error for " + json);
+            } catch (java.io.IOException e) {
+                // expected
+            }
+        }
+    }
+}
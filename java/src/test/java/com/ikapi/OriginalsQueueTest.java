@@ -0,0 +1,121 @@
+package com.ikapi;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+import junit.framework.TestCase;
+
+import org.indiankanoon.OriginalsQueue;
+
+/**
+ * Unit tests for the per-node journals of OriginalsQueue.
+ */
+public class OriginalsQueueTest
+    extends TestCase
+{
+    private Path dir;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        dir = Files.createTempDirectory("originals");
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        try (Stream<Path> files = Files.walk(dir))
+        {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+            {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private List<String> journals() throws Exception
+    {
+        try (Stream<Path> files = Files.list(dir))
+        {
+            return files.map(f -> f.getFileName().toString()).filter(f -> f.endsWith(".log")).sorted().collect(Collectors.toList());
+        }
+    }
+
+    public void testFailedOriginalsAreResumedByAnotherNode() throws Exception
+    {
+        try (OriginalsQueue a = new OriginalsQueue(dir, "a", 60_000, 2, 0, 0, (docId, path) -> CompletableFuture.completedFuture(docId == 2 ? -1L : 10L)))
+        {
+            a.enqueue(1, "p1");
+            a.enqueue(2, "p2");
+            a.enqueue(2, "p2");
+        }
+        assertEquals(Arrays.asList("pending-a.log"), journals());
+        assertEquals(Arrays.asList("2\tp2"), Files.readAllLines(dir.resolve("pending-a.log"), StandardCharsets.UTF_8));
+
+        List<Integer> fetched = Collections.synchronizedList(new ArrayList<>());
+        OriginalsQueue b = new OriginalsQueue(dir, "b", 60_000, 2, 0, 0, (docId, path) -> {
+            fetched.add(docId);
+            return CompletableFuture.completedFuture(10L);
+        });
+        // a's journal has been taken over
+        assertEquals(Arrays.asList("done-b.log", "pending-b.log"), journals());
+        b.close();
+        assertEquals(Arrays.asList(2), fetched);
+        assertEquals(Collections.emptyList(), Files.readAllLines(dir.resolve("pending-b.log"), StandardCharsets.UTF_8));
+    }
+
+    public void testJournalOfLiveNodeIsLeftAlone() throws Exception
+    {
+        List<Integer> fetchedByB = Collections.synchronizedList(new ArrayList<>());
+        try (OriginalsQueue a = new OriginalsQueue(dir, "a", 60_000, 1, 0, 0, (docId, path) -> CompletableFuture.completedFuture(-1L)))
+        {
+            a.enqueue(1, "p1");
+            try (OriginalsQueue b = new OriginalsQueue(dir, "b", 60_000, 1, 0, 0, (docId, path) -> {
+                fetchedByB.add(docId);
+                return CompletableFuture.completedFuture(10L);
+            }))
+            {
+                b.enqueue(3, "p3");
+            }
+            assertTrue(Files.readAllLines(dir.resolve("pending-a.log"), StandardCharsets.UTF_8).contains("1\tp1"));
+
+            // a second process with the same node id gets a journal of its own
+            OriginalsQueue again = new OriginalsQueue(dir, "a", 60_000, 1, 0, 0, (docId, path) -> CompletableFuture.completedFuture(10L));
+            assertTrue(journals().contains("pending-a-" + ProcessHandle.current().pid() + ".log"));
+            again.close();
+        }
+        assertEquals(Arrays.asList(3), fetchedByB);
+        assertEquals(Arrays.asList("1\tp1"), Files.readAllLines(dir.resolve("pending-a.log"), StandardCharsets.UTF_8));
+    }
+
+    public void testOnlyCommittedOriginalsAreDone() throws Exception
+    {
+        CompletableFuture<Long> commit = new CompletableFuture<>();
+        OriginalsQueue a = new OriginalsQueue(dir, "a", 60_000, 1, 0, 0, (docId, path) -> commit);
+        a.enqueue(1, "p1");
+        Thread.sleep(200);
+        // fetched, but its write is not committed yet
+        assertEquals(Collections.emptyList(), Files.readAllLines(dir.resolve("done-a.log"), StandardCharsets.UTF_8));
+        commit.complete(10L);
+        assertEquals(Arrays.asList("1\tp1"), Files.readAllLines(dir.resolve("done-a.log"), StandardCharsets.UTF_8));
+        a.close();
+        assertEquals(Collections.emptyList(), Files.readAllLines(dir.resolve("pending-a.log"), StandardCharsets.UTF_8));
+    }
+
+    public void testRequestRate() throws Exception
+    {
+        // however many workers there are, at most 10 originals a second
+        long start = System.nanoTime();
+        try (OriginalsQueue a = new OriginalsQueue(dir, "a", 60_000, 4, 0, 10, (docId, path) -> CompletableFuture.completedFuture(10L)))
+        {
+            for (int i = 0; i < 6; i++)
+            {
+                a.enqueue(i, "p" + i);
+            }
+        }
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(500));
+    }
+}
@@ -0,0 +1,91 @@
+package com.ikapi;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+import junit.framework.TestCase;
+
+import org.indiankanoon.LongLongMap;
+import org.indiankanoon.QueryFile;
+
+/**
+ * Unit tests for QueryFile and the LongLongMap it dedups with.
+ */
+public class QueryFileTest
+    extends TestCase
+{
+    private Path file;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        file = Files.createTempFile("qfile", ".txt");
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        Files.delete(file);
+    }
+
+    private static List<String> read(QueryFile qf) throws Exception
+    {
+        List<String> queries = new ArrayList<>();
+        try
+        {
+            while (qf.hasNext())
+            {
+                queries.add(qf.next());
+            }
+        } finally {
+            qf.close();
+        }
+        return queries;
+    }
+
+    public void testSkipsBlankAndRepeatedQueries() throws Exception
+    {
+        Files.write(file, "cheque bounce\n\n  murder  \r\ncheque bounce\nmurder\nbail".getBytes(StandardCharsets.UTF_8));
+        assertEquals(Arrays.asList("cheque bounce", "murder", "bail"), read(new QueryFile(file)));
+    }
+
+    public void testHashCollisionKeepsDistinctQueries() throws Exception
+    {
+        // two hashes for all the queries, so repeats are told apart by the lines read back;
+        // the long lines do not fit in one read
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 3; i++)
+        {
+            text.append("  \u0928\u094d\u092f\u093e\u092f ").append("x".repeat(5000)).append("\n");
+        }
+        text.append("murder\nbail\nmurder\n");
+        Files.write(file, text.toString().getBytes(StandardCharsets.UTF_8));
+        List<String> queries = read(new QueryFile(file, q -> q.startsWith("\u0928") ? 42 : 7));
+        assertEquals(3, queries.size());
+        assertTrue(queries.get(0).startsWith("\u0928\u094d\u092f\u093e\u092f x"));
+        assertEquals(Arrays.asList("murder", "bail"), queries.subList(1, 3));
+    }
+
+    public void testLongLongMap()
+    {
+        LongLongMap map = new LongLongMap(4);
+        Random random = new Random(42);
+        Map<Long, Long> expected = new HashMap<>();
+        for (int i = 0; i < 100_000; i++)
+        {
+            long k = i % 3 == 0 ? random.nextInt(1000) : random.nextLong();
+            Long old = expected.putIfAbsent(k, (long) i);
+            assertEquals(old == null ? LongLongMap.NONE : old, map.putIfAbsent(k, i));
+        }
+        Long zero = expected.putIfAbsent(0L, 5L);
+        assertEquals(zero == null ? LongLongMap.NONE : zero, map.putIfAbsent(0L, 5));
+        assertEquals((long) expected.get(0L), map.putIfAbsent(0L, 6));
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Long, Long> e : expected.entrySet())
+        {
+            assertEquals((long) e.getValue(), map.get(e.getKey()));
+            assertEquals(expected.containsKey(e.getKey() + 1), map.get(e.getKey() + 1) != LongLongMap.NONE);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.ikapi;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import junit.framework.TestCase;
+
+import org.indiankanoon.QueryScheduler;
+
+/**
+ * Unit tests for the round robin between queries in QueryScheduler.
+ */
+public class QuerySchedulerTest
+    extends TestCase
+{
+    public void testQueriesTakeTurns() throws Exception
+    {
+        QueryScheduler scheduler = new QueryScheduler(1, 2, 0);
+        List<String> ran = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch bothQueued = new CountDownLatch(1);
+        try
+        {
+            scheduler.admit("a", job -> {
+                for (int i = 0; i < 5; i++)
+                {
+                    String name = "a" + i;
+                    scheduler.submit(job, () -> {
+                        ran.add(name);
+                        if(name.equals("a0"))
+                        {
+                            // hold the only worker until b has queued all its tasks
+                            try
+                            {
+                                bothQueued.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                    });
+                }
+            });
+            scheduler.admit("b", job -> {
+                for (int i = 0; i < 5; i++)
+                {
+                    String name = "b" + i;
+                    scheduler.submit(job, () -> ran.add(name));
+                }
+            });
+            bothQueued.countDown();
+            scheduler.awaitIdle();
+        } finally {
+            scheduler.shutdown();
+        }
+        // once b has queued its tasks (while a0 runs), the queries take turns
+        // until one of them has nothing left; each runs its own tasks in order
+        assertEquals(10, ran.size());
+        assertEquals("a0", ran.get(0));
+        Map<Character, Integer> done = new HashMap<>();
+        for (int i = 0; i < ran.size(); i++)
+        {
+            char q = ran.get(i).charAt(0);
+            int n = done.merge(q, 1, Integer::sum);
+            assertEquals(q + "" + (n - 1), ran.get(i));
+            if(i >= 2 && ran.get(i - 1).charAt(0) == q)
+            {
+                assertEquals(5, (int) done.getOrDefault(q == 'a' ? 'b' : 'a', 0));
+            }
+        }
+    }
+
+    public void testManyTasksOfOneQueryDoNotHoldUpAnother() throws Exception
+    {
+        QueryScheduler scheduler = new QueryScheduler(2, 2, 0);
+        CountDownLatch bDone = new CountDownLatch(1);
+        try
+        {
+            scheduler.admit("a", job -> {
+                for (int i = 0; i < 1000; i++)
+                {
+                    scheduler.submit(job, () -> {
+                        try
+                        {
+                            Thread.sleep(1);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    });
+                }
+            });
+            long start = System.nanoTime();
+            scheduler.admit("b", job -> scheduler.submit(job, bDone::countDown));
+            assertTrue(bDone.await(10, TimeUnit.SECONDS));
+            // b's one task went ahead of a's backlog (at least 500 ms of it) rather than after it
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(250));
+            scheduler.awaitIdle();
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+}
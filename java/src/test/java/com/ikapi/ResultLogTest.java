@@ -0,0 +1,178 @@
+package com.ikapi;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDate;
+import java.util.*;
+
+import junit.framework.TestCase;
+
+import org.indiankanoon.RecordFile;
+import org.indiankanoon.ResultLog;
+import org.indiankanoon.SearchHit;
+import org.indiankanoon.StringDictionary;
+
+/**
+ * Unit tests for the ResultLog on-disk format, its lookups and its recovery
+ * from a crash part way through a write.
+ */
+public class ResultLogTest
+    extends TestCase
+{
+    private Path dir;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        dir = Files.createTempDirectory("resultlog");
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir))
+        {
+            for (Path file : files)
+            {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    private void writeSample() throws IOException
+    {
+        try (ResultLog log = new ResultLog(dir))
+        {
+            log.append("murder", new SearchHit(0, 300, "2001-05-03", "Supreme Court of India", "A v. B", null));
+            log.append("murder", new SearchHit(1, 100, "1999-01-10", "Delhi High Court", "C v. D", null));
+            log.append("bail", new SearchHit(0, 200, "", "Delhi High Court", "E v. F", null));
+            log.append("bail", new SearchHit(1, 300, "2001-05-03", "Supreme Court of India", "A v. B", null));
+        }
+    }
+
+    private List<String> lookup(Integer docId, String court, LocalDate from, LocalDate to) throws IOException
+    {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        try (PrintStream out = new PrintStream(buf, true, "UTF-8"))
+        {
+            ResultLog.lookup(dir, docId, court, from, to, out);
+        }
+        String text = new String(buf.toByteArray(), StandardCharsets.UTF_8);
+        return text.isEmpty() ? Collections.<String>emptyList() : Arrays.asList(text.split("\n"));
+    }
+
+    public void testRecordFormat() throws Exception
+    {
+        writeSample();
+        byte[] hits = Files.readAllBytes(dir.resolve("hits.bin"));
+        assertEquals(4 * ResultLog.RECORD_SIZE, hits.length);
+
+        ByteBuffer rec = ByteBuffer.wrap(hits, ResultLog.RECORD_SIZE, ResultLog.RECORD_SIZE);
+        assertEquals(0, rec.getInt());     // query id of "murder"
+        assertEquals(1, rec.getInt());     // position
+        assertEquals(100, rec.getInt());   // docid
+        assertEquals(LocalDate.of(1999, 1, 10).toEpochDay(), rec.getInt());
+        assertEquals(1, rec.getInt());     // court id of "Delhi High Court"
+        assertEquals(4 + "A v. B".length(), rec.getLong());
+
+        // the undated hit
+        assertEquals(ResultLog.NO_DATE, ByteBuffer.wrap(hits).getInt(2 * ResultLog.RECORD_SIZE + 12));
+
+        assertEquals(Arrays.asList("murder", "bail"), Files.readAllLines(dir.resolve("queries.txt")));
+        assertEquals(Arrays.asList("Supreme Court of India", "Delhi High Court"), Files.readAllLines(dir.resolve("courts.txt")));
+
+        ByteBuffer idx = ByteBuffer.wrap(Files.readAllBytes(dir.resolve("docid.idx")));
+        assertEquals(4, idx.getInt());
+        assertEquals(1, idx.getInt());
+        assertEquals(2, idx.getInt());
+        assertEquals(0, idx.getInt());
+        assertEquals(3, idx.getInt());
+    }
+
+    public void testLookup() throws Exception
+    {
+        writeSample();
+        assertEquals(Arrays.asList("murder\t0\t300\t2001-05-03\tSupreme Court of India\tA v. B",
+                                   "bail\t1\t300\t2001-05-03\tSupreme Court of India\tA v. B"),
+                     lookup(300, null, null, null));
+        assertEquals(Collections.emptyList(), lookup(301, null, null, null));
+        assertEquals(2, lookup(null, "Delhi High Court", null, null).size());
+        assertEquals(Collections.emptyList(), lookup(null, "No Such Court", null, null));
+
+        List<String> dated = lookup(null, null, LocalDate.of(2000, 1, 1), null);
+        assertEquals(2, dated.size());
+        assertTrue(dated.get(0).contains("\t300\t"));
+        assertEquals(1, lookup(null, "Delhi High Court", null, LocalDate.of(2000, 1, 1)).size());
+        // every hit, undated ones included, in date order
+        assertEquals(4, lookup(null, null, null, null).size());
+        assertTrue(lookup(null, null, null, null).get(0).startsWith("bail\t0\t200"));
+    }
+
+    public void testRebuildsStaleIndexes() throws Exception
+    {
+        writeSample();
+        Files.delete(dir.resolve("date.idx"));
+        try (ResultLog log = new ResultLog(dir))
+        {
+            log.append("theft", new SearchHit(0, 50, "2010-02-02", "Delhi High Court", "G v. H", null));
+        }
+        Files.write(dir.resolve("docid.idx"), new byte[] {0, 0, 0, 1});
+        assertEquals(1, lookup(50, null, null, null).size());
+        assertEquals(3, lookup(null, null, LocalDate.of(2000, 1, 1), null).size());
+    }
+
+    public void testRecoversFromPartialWrites() throws Exception
+    {
+        writeSample();
+        try (FileChannel ch = FileChannel.open(dir.resolve("hits.bin"), StandardOpenOption.WRITE, StandardOpenOption.APPEND))
+        {
+            ch.write(ByteBuffer.wrap(new byte[ResultLog.RECORD_SIZE / 2]));
+        }
+        Files.write(dir.resolve("queries.txt"), "half a line".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        // readers skip the torn record and line without touching the files
+        assertEquals(2, lookup(300, null, null, null).size());
+        try (StringDictionary queries = new StringDictionary(dir.resolve("queries.txt"), false))
+        {
+            assertNull(queries.lookupId("half a line"));
+        }
+
+        try (ResultLog log = new ResultLog(dir))
+        {
+            log.append("robbery", new SearchHit(0, 400, "2005-07-07", "Delhi High Court", "I v. J", null));
+        }
+        assertEquals(5 * ResultLog.RECORD_SIZE, Files.size(dir.resolve("hits.bin")));
+        assertEquals(Arrays.asList("murder", "bail", "robbery"), Files.readAllLines(dir.resolve("queries.txt")));
+        assertEquals(Arrays.asList("robbery\t0\t400\t2005-07-07\tDelhi High Court\tI v. J"), lookup(400, null, null, null));
+    }
+
+    public void testRecordFileWindows() throws Exception
+    {
+        Path file = dir.resolve("records.bin");
+        ByteBuffer b = ByteBuffer.allocate(4 + 10 * 12 + 5);
+        b.putInt(10);
+        for (int i = 0; i < 10; i++)
+        {
+            b.putInt(i).putLong(1000L * i);
+        }
+        Files.write(file, b.array());
+
+        // windows smaller than a record and not a multiple of it
+        for (long window : new long[] {1, 12, 30, 1 << 20})
+        {
+            RecordFile records = RecordFile.open(file, 4, 12, window);
+            assertEquals(10, records.count());
+            assertEquals(10, records.headerInt(0));
+            for (long i = 0; i < 10; i++)
+            {
+                assertEquals(i, records.getInt(i, 0));
+                assertEquals(1000L * i, records.getLong(i, 4));
+            }
+        }
+        assertEquals(0, RecordFile.open(dir.resolve("missing.bin"), 4, 12).count());
+    }
+}
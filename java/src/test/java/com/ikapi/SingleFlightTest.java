@@ -0,0 +1,83 @@
+package com.ikapi;
+
+import java.util.concurrent.*;
+
+import junit.framework.TestCase;
+
+import org.indiankanoon.SingleFlight;
+
+/**
+ * Unit tests for SingleFlight.
+ */
+public class SingleFlightTest
+    extends TestCase
+{
+    public void testWaitersShareTheResult() throws Exception
+    {
+        SingleFlight<String> flight = new SingleFlight<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try
+        {
+            Future<String> first = pool.submit(() -> flight.run("k", () -> {
+                started.countDown();
+                await(finish);
+                return "once";
+            }));
+            started.await();
+            Future<String> second = pool.submit(() -> flight.run("k", () -> "twice"));
+            Thread.sleep(100);
+            finish.countDown();
+            assertEquals("once", first.get(10, TimeUnit.SECONDS));
+            assertEquals("once", second.get(10, TimeUnit.SECONDS));
+            // nothing is cached afterwards
+            assertEquals("again", flight.run("k", () -> "again"));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    public void testErrorsReachWaitersAndFreeTheKey() throws Exception
+    {
+        SingleFlight<String> flight = new SingleFlight<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try
+        {
+            Future<String> first = pool.submit(() -> flight.run("k", () -> {
+                started.countDown();
+                await(finish);
+                throw new OutOfMemoryError("boom");
+            }));
+            started.await();
+            Future<String> second = pool.submit(() -> flight.run("k", () -> "unused"));
+            Thread.sleep(100);
+            finish.countDown();
+            for (Future<String> f : java.util.Arrays.asList(first, second))
+            {
+                try
+                {
+                    f.get(10, TimeUnit.SECONDS);
+                    fail("expected the error");
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof OutOfMemoryError);
+                }
+            }
+            assertEquals("fresh", flight.run("k", () -> "fresh"));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static void await(CountDownLatch latch)
+    {
+        try
+        {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
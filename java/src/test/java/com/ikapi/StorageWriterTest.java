@@ -0,0 +1,121 @@
+package com.ikapi;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+import junit.framework.TestCase;
+
+import org.indiankanoon.StorageWriter;
+
+/**
+ * Unit tests for the futures StorageWriter hands back for its writes.
+ */
+public class StorageWriterTest
+    extends TestCase
+{
+    private Path dir;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        dir = Files.createTempDirectory("writer");
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        try (Stream<Path> files = Files.walk(dir))
+        {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+            {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private static byte[] bytes(String s)
+    {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public void testFutureCompletesOnceTheFileIsInPlace() throws Exception
+    {
+        StorageWriter writer = new StorageWriter(2, 4, 50, null);
+        try
+        {
+            Path target = dir.resolve("1.json");
+            CompletableFuture<Boolean> saved = writer.submit("json", target, bytes("{}"));
+            CompletableFuture<Boolean> seen = saved.thenApply(ok -> ok && Files.exists(target));
+            assertTrue(seen.get(10, TimeUnit.SECONDS));
+            assertEquals("{}", new String(Files.readAllBytes(target), StandardCharsets.UTF_8));
+            assertFalse(writer.isPending(target));
+        } finally {
+            writer.close();
+        }
+    }
+
+    public void testFailedWriteCompletesWithFalse() throws Exception
+    {
+        StorageWriter writer = new StorageWriter(1, 4, 0, null);
+        try
+        {
+            Path target = dir.resolve("missing").resolve("1.json");
+            assertFalse(writer.submit("json", target, bytes("{}")).get(10, TimeUnit.SECONDS));
+            writer.flush();
+            assertFalse(writer.isPending(target));
+            // the thread is still there for the next write
+            assertTrue(writer.submit("json", dir.resolve("2.json"), bytes("{}")).get(10, TimeUnit.SECONDS));
+        } finally {
+            writer.close();
+        }
+    }
+
+    public void testSubmitFileMovesItIntoPlace() throws Exception
+    {
+        StorageWriter writer = new StorageWriter(1, 4, 50, null);
+        try
+        {
+            Path source = dir.resolve("1_orignal.abc.tmp");
+            Files.write(source, bytes("%PDF"));
+            Path target = dir.resolve("1_orignal.pdf");
+            assertTrue(writer.submitFile("original", source, target).get(10, TimeUnit.SECONDS));
+            assertEquals("%PDF", new String(Files.readAllBytes(target), StandardCharsets.UTF_8));
+            assertFalse(Files.exists(source));
+
+            // a failed commit does not leave the source behind
+            Path other = dir.resolve("2_orignal.abc.tmp");
+            Files.write(other, bytes("%PDF"));
+            assertFalse(writer.submitFile("original", other, dir.resolve("missing").resolve("2_orignal.pdf")).get(10, TimeUnit.SECONDS));
+            assertFalse(Files.exists(other));
+        } finally {
+            writer.close();
+        }
+    }
+
+    public void testCloseCommitsWhatIsQueued() throws Exception
+    {
+        StorageWriter writer = new StorageWriter(2, 64, 200, null);
+        List<CompletableFuture<Boolean>> saved = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+        {
+            saved.add(writer.submit("json", dir.resolve(i + ".json"), bytes("{\"tid\": " + i + "}")));
+        }
+        writer.close();
+        for (int i = 0; i < 20; i++)
+        {
+            assertTrue(saved.get(i).isDone());
+            assertTrue(saved.get(i).get());
+            assertTrue(Files.exists(dir.resolve(i + ".json")));
+        }
+        try
+        {
+            writer.submit("json", dir.resolve("late.json"), bytes("{}"));
+            fail("expected the writer to be closed");
+        } catch (java.io.IOException e) {
+            // expected
+        }
+    }
+}
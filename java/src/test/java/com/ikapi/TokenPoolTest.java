@@ -0,0 +1,86 @@
+package com.ikapi;
+
+import java.util.*;
+
+import junit.framework.TestCase;
+
+import org.indiankanoon.TokenPool;
+
+/**
+ * Unit tests for how TokenPool picks tokens and spots quota errors.
+ */
+public class TokenPoolTest
+    extends TestCase
+{
+    private static TokenPool pool(boolean byBudget, TokenPool.Token... tokens)
+    {
+        return new TokenPool(new ArrayList<>(Arrays.asList(tokens)), byBudget, 60_000);
+    }
+
+    public void testRoundRobinAmongFreeTokens() throws Exception
+    {
+        TokenPool pool = pool(false, new TokenPool.Token(1, "a", 0, 0),
+                new TokenPool.Token(2, "b", 0, 0), new TokenPool.Token(3, "c", 0, 0));
+        StringBuilder order = new StringBuilder();
+        for (int i = 0; i < 6; i++)
+        {
+            order.append(pool.acquire().label());
+        }
+        assertEquals("#1#2#3#1#2#3", order.toString());
+    }
+
+    public void testPicksTheTokenThatFreesUpSoonest() throws Exception
+    {
+        // #1 may go every 2 s, #2 every 100 ms
+        TokenPool pool = pool(false, new TokenPool.Token(1, "slow", 0.5, 0), new TokenPool.Token(2, "fast", 10, 0));
+        assertEquals("#1", pool.acquire().label());
+        long start = System.nanoTime();
+        for (int i = 0; i < 5; i++)
+        {
+            assertEquals("#2", pool.acquire().label());
+        }
+        assertTrue(System.nanoTime() - start < 1_500_000_000L);
+    }
+
+    public void testBudgetAmongFreeTokens() throws Exception
+    {
+        TokenPool pool = pool(true, new TokenPool.Token(1, "a", 0, 3), new TokenPool.Token(2, "b", 0, 5));
+        StringBuilder order = new StringBuilder();
+        for (int i = 0; i < 8; i++)
+        {
+            order.append(pool.acquire().label());
+        }
+        assertEquals("#2#2#1#2#1#2#1#2", order.toString());
+        try
+        {
+            pool.acquire();
+            fail("expected the quotas to be used up");
+        } catch (java.io.IOException e) {
+            // expected
+        }
+    }
+
+    public void testQuotaErrorsComeFromErrmsgOnly()
+    {
+        TokenPool.Token token = new TokenPool.Token(1, "a", 0, 0);
+        TokenPool pool = pool(false, token, new TokenPool.Token(2, "b", 0, 0));
+
+        // a doc whose text talks about quotas and errmsg
+        pool.report(token, 200, true, "{\"tid\": 1, \"doc\": \"the import quota was exceeded, see \\\"errmsg\\\"\"}");
+        pool.report(token, 200, true, "<html>\"errmsg\": quota</html>");
+        assertEquals(0, token.quarantinedUntil);
+        assertEquals(0, token.errors);
+
+        pool.report(token, 200, true, "{\"errmsg\": \"Daily quota exceeded\"}");
+        assertTrue(token.quarantinedUntil > System.currentTimeMillis());
+    }
+
+    public void testErrmsg()
+    {
+        assertEquals("Daily quota exceeded", TokenPool.errmsg("{\"errmsg\": \"Daily quota exceeded\"}"));
+        assertNull(TokenPool.errmsg("{\"doc\": \"no errmsg field\"}"));
+        assertNull(TokenPool.errmsg("{\"doc\": \"\\\"errmsg\\\"\"}"));
+        assertNull(TokenPool.errmsg("\"errmsg\" but not json"));
+        assertNull(TokenPool.errmsg(null));
+    }
+}